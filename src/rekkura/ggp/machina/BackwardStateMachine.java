@@ -6,15 +6,21 @@ import java.util.Map;
 import java.util.Set;
 
 import rekkura.ggp.milleu.GameLogicContext;
+import rekkura.logic.algorithm.Optimizer;
 import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
 import rekkura.logic.prover.StratifiedBackward;
 import rekkura.logic.structure.Pool;
+import rekkura.logic.structure.Ruletta;
+import rekkura.state.model.StateMachine;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 
@@ -34,11 +40,35 @@ public class BackwardStateMachine implements GgpStateMachine {
 	public final Multimap<Rule, Dob> knownStatic = HashMultimap.create();
 	public final Set<Rule> queryRules = Sets.newHashSet();
 
+	/**
+	 * This holds the magic sets for queries that have the role bound,
+	 * keyed by the unbound query that they answer.
+	 */
+	private final Map<Dob, Optimizer.Magic> magic = Maps.newHashMap();
+
 	public BackwardStateMachine(StratifiedBackward prover) {
+		this(prover, ImmutableList.<Optimizer.Magic>of());
+	}
+
+	/**
+	 * The rules of the magic sets, along with a vacuous rule for each
+	 * adorned query, must already be in the prover.
+	 * @param prover
+	 * @param magic
+	 */
+	public BackwardStateMachine(StratifiedBackward prover, Collection<Optimizer.Magic> magic) {
 		this.glc = new GameLogicContext(prover.pool, prover.rta);
 		this.prover = prover;
 		this.pool = prover.pool;
 
+		// Rules that hang off of a seed are asked fresh every time
+		List<Dob> seeds = Lists.newArrayList();
+		for (Optimizer.Magic cur : magic) {
+			this.magic.put(cur.query, cur);
+			seeds.add(cur.seed);
+		}
+		glc.markMutable(seeds);
+
 		// Construct and add query rules
 		queryRules.addAll(pool.rules.submerge(glc.constructQueryRules()));
 		glc.staticRules.addAll(queryRules);
@@ -48,7 +78,16 @@ public class BackwardStateMachine implements GgpStateMachine {
 		for (Rule rule : this.glc.staticRules) {
 			this.knownStatic.putAll(rule, this.prover.traversal.known.get(rule));
 		}
+		
+		// Everything from here on depends on the state
+		pool.dobs.mark();
 	}
+	
+	/**
+	 * Everything in the pool that was submerged after this machine was
+	 * built is forgotten. States from before still work as arguments.
+	 */
+	public void reclaim() { prover.reclaim(); }
 
 	@Override
 	public Set<Dob> getInitial() {
@@ -60,6 +99,17 @@ public class BackwardStateMachine implements GgpStateMachine {
 		return glc.extractActions(proverPass(state, glc.LEGAL_QUERY, glc.LEGAL_UNIFY));
 	}
 
+	/**
+	 * @param state
+	 * @param role
+	 * @return the legal actions of the given role as does dobs. If the
+	 * machine was created with magic sets, the legal actions of the other 
+	 * roles are never derived.
+	 */
+	public List<Dob> getActions(Set<Dob> state, Dob role) {
+		return glc.extractActions(boundPass(state, glc.LEGAL_QUERY, role, glc.LEGAL_UNIFY)).get(role);
+	}
+
 	@Override
 	public Set<Dob> nextState(Set<Dob> state, Map<Dob, Dob> actions) {
 		Iterable<Dob> complete = Iterables.concat(state, actions.values());
@@ -76,6 +126,29 @@ public class BackwardStateMachine implements GgpStateMachine {
 		return glc.extractGoals(proverPass(state, glc.GOAL_QUERY, glc.EMTPY_UNIFY));
 	}
 	
+	/**
+	 * The queries are asked one after another without clearing, so 
+	 * anything they have in common is only proven once.
+	 */
+	@Override
+	public StateMachine.Examination<Dob> examine(Set<Dob> state) {
+		reset(state);
+		Set<Dob> proven = Sets.newHashSet();
+		for (Dob query : ImmutableList.of(glc.TERMINAL, glc.GOAL_QUERY, glc.LEGAL_QUERY)) {
+			proven.addAll(prover.ask(query));
+		}
+		return ProverStateMachine.examine(proven, glc);
+	}
+
+	/**
+	 * @param state
+	 * @param role
+	 * @return the goal of the given role or null if it has none
+	 */
+	public Integer getGoal(Set<Dob> state, Dob role) {
+		return glc.extractGoals(boundPass(state, glc.GOAL_QUERY, role, glc.EMTPY_UNIFY)).get(role);
+	}
+	
 	public static StratifiedBackward createProverForRules(Collection<Rule> rules) {
 		List<Rule> augmented = GameLogicContext.augmentWithQueryRules(rules);
 		return new StratifiedBackward(augmented);
@@ -84,14 +157,76 @@ public class BackwardStateMachine implements GgpStateMachine {
 	public static BackwardStateMachine createForRules(Collection<Rule> rules) {
 		return new BackwardStateMachine(createProverForRules(rules));
 	}
+
+	/**
+	 * Builds a machine that also holds magic sets for the legal and goal
+	 * queries with the role bound. Relations that are GDL static are not
+	 * adorned so that they can still be proven once up front.
+	 * @param rules
+	 * @return
+	 */
+	public static BackwardStateMachine createWithMagic(Collection<Rule> rules) {
+		Pool pool = new Pool();
+		GameLogicContext glc = new GameLogicContext(pool, Ruletta.create(rules, pool));
+		List<Rule> submerged = pool.rules.submerge(rules);
+
+		Set<Dob> fixed = Sets.newHashSet(glc.TRUE, glc.DOES);
+		fixed.addAll(getNames(glc.staticRules));
+		fixed.removeAll(getNames(glc.mutableRules));
+
+		Set<Rule> augmented = Sets.newHashSet(submerged);
+		augmented.addAll(glc.constructQueryRules());
+		List<Optimizer.Magic> magic = Lists.newArrayList();
+		for (Dob query : ImmutableList.of(glc.LEGAL_QUERY, glc.GOAL_QUERY)) {
+			Optimizer.Magic cur = Optimizer.magic(submerged, query, 
+				ImmutableList.of(glc.ROLE_VAR), fixed, pool);
+			if (!cur.isAdorned()) continue;
+			augmented.addAll(cur.rules);
+			augmented.add(Rule.asVacuous(cur.adorned, glc.GENERIC_VAR_LIST));
+			magic.add(cur);
+		}
+
+		return new BackwardStateMachine(new StratifiedBackward(augmented, pool), magic);
+	}
+
+	private static Set<Dob> getNames(Iterable<Rule> rules) {
+		Set<Dob> result = Sets.newHashSet();
+		for (Rule rule : rules) {
+			Dob head = rule.head.dob;
+			result.add(head.isTerminal() ? head : head.at(0));
+		}
+		return result;
+	}
+	
+	/**
+	 * Asks the adorned query if there is one. The seed tells the magic
+	 * rules which role is being asked about. Otherwise this falls back 
+	 * to asking the full query.
+	 */
+	private Set<Dob> boundPass(Set<Dob> state, Dob query, Dob role, Map<Dob, Dob> unify) {
+		Optimizer.Magic cur = this.magic.get(query);
+		if (cur == null) return proverPass(state, query, unify);
+
+		Dob seed = cur.getSeed(ImmutableMap.of(glc.ROLE_VAR, role), pool);
+		Iterable<Dob> complete = Iterables.concat(state, ImmutableList.of(seed));
+		Set<Dob> restored = Sets.newHashSet();
+		for (Dob dob : proverPass(complete, cur.adorned, glc.EMTPY_UNIFY)) {
+			restored.add(cur.restore(dob, pool));
+		}
+		return ProverStateMachine.submersiveReplace(restored, unify, pool);
+	}
 	
 	private Set<Dob> proverPass(Iterable<Dob> state, Dob query, Map<Dob, Dob> unify) {
+		reset(state);
+		Set<Dob> proven = prover.ask(query);
+		Set<Dob> submerged = ProverStateMachine.submersiveReplace(proven, unify, pool);
+		return submerged;
+	}
+
+	private void reset(Iterable<Dob> state) {
 		prover.clear();
 		prover.preserveTruths(state);
 		prover.preserveAndPutKnown(knownStatic);
 		prover.traversal.visited.addAll(knownStatic.keySet());
-		Set<Dob> proven = prover.ask(query);
-		Set<Dob> submerged = ProverStateMachine.submersiveReplace(proven, unify, pool);
-		return submerged;
 	}
 }
@@ -0,0 +1,175 @@
+package rekkura.ggp.machina;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.state.model.StateMachine;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * This machine remembers what another machine said about the most
+ * recently used states. Dobs are submerged, so a state hashes as the
+ * sum of the identity hashes of its dobs, and the states that come
+ * out of this machine are immutable sets that remember their hash.
+ * States that are already immutable, like the {@link GameState}s of
+ * propnets, are kept as they are and only mutable sets are copied.
+ * Everything handed out is immutable because it may be handed out again.
+ * <br>
+ * If the pool of the backing machine is reclaimed, this must be cleared.
+ * Like the machines it wraps, this is not safe to share between threads.
+ * @author ptpham
+ *
+ * @param <M>
+ */
+public class CachingStateMachine<M extends GgpStateMachine> implements GgpStateMachine {
+
+	public final M machine;
+	public final int capacity;
+
+	private final LinkedHashMap<Set<Dob>, Entry> entries;
+	private long hits, misses;
+
+	private static class Entry {
+		ListMultimap<Dob, Dob> actions;
+		Boolean terminal;
+		Map<Dob, Integer> goals;
+		final Map<Map<Dob, Dob>, Set<Dob>> next = Maps.newHashMap();
+	}
+
+	public CachingStateMachine(M machine, final int capacity) {
+		Preconditions.checkArgument(capacity > 0, "Capacity must be positive!");
+		this.machine = machine;
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Set<Dob>, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override protected boolean removeEldestEntry(Map.Entry<Set<Dob>, Entry> eldest)
+			{ return size() > capacity; }
+		};
+	}
+
+	@Override
+	public Set<Dob> getInitial() {
+		return freeze(machine.getInitial());
+	}
+
+	@Override
+	public ListMultimap<Dob, Dob> getActions(Set<Dob> state) {
+		Entry entry = getEntry(state);
+		if (count(entry.actions)) entry.actions = ImmutableListMultimap.copyOf(machine.getActions(state));
+		return entry.actions;
+	}
+
+	@Override
+	public Set<Dob> nextState(Set<Dob> state, Map<Dob, Dob> actions) {
+		Entry entry = getEntry(state);
+		Set<Dob> result = entry.next.get(actions);
+		if (count(result)) {
+			result = freeze(machine.nextState(state, actions));
+			entry.next.put(ImmutableMap.copyOf(actions), result);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isTerminal(Set<Dob> state) {
+		Entry entry = getEntry(state);
+		if (count(entry.terminal)) entry.terminal = machine.isTerminal(state);
+		return entry.terminal;
+	}
+
+	@Override
+	public Map<Dob, Integer> getGoals(Set<Dob> state) {
+		Entry entry = getEntry(state);
+		if (count(entry.goals)) entry.goals = ImmutableMap.copyOf(machine.getGoals(state));
+		return entry.goals;
+	}
+
+	/**
+	 * This counts as a single question. It is a hit only if everything 
+	 * in the examination was already known.
+	 */
+	@Override
+	public StateMachine.Examination<Dob> examine(Set<Dob> state) {
+		Entry entry = getEntry(state);
+		boolean known = entry.actions != null && entry.terminal != null && entry.goals != null;
+		if (count(known ? entry : null)) {
+			StateMachine.Examination<Dob> examination = machine.examine(state);
+			entry.terminal = examination.terminal;
+			entry.goals = ImmutableMap.copyOf(examination.goals);
+			entry.actions = ImmutableListMultimap.copyOf(examination.actions);
+		}
+		return new StateMachine.Examination<Dob>(entry.terminal, entry.goals, entry.actions);
+	}
+
+	public void clear() { this.entries.clear(); }
+
+	public int size() { return this.entries.size(); }
+
+	public long getHits() { return this.hits; }
+
+	public long getMisses() { return this.misses; }
+
+	/**
+	 * @return the fraction of questions that were answered without
+	 * asking the backing machine, or zero if nothing was asked
+	 */
+	public double getHitRate() {
+		long total = this.hits + this.misses;
+		return total == 0 ? 0 : (double) this.hits / total;
+	}
+
+	public void resetCounts() { this.hits = this.misses = 0; }
+
+	/**
+	 * @param factory
+	 * @param capacity the number of states to remember
+	 * @return a factory for machines from the given factory that 
+	 * remember what they said about recent states
+	 */
+	public static <M extends GgpStateMachine> GgpStateMachine.Factory<CachingStateMachine<M>>
+	wrap(final GgpStateMachine.Factory<M> factory, final int capacity) {
+		return new GgpStateMachine.Factory<CachingStateMachine<M>>() {
+			@Override public CachingStateMachine<M> create(Collection<Rule> rules) {
+				return new CachingStateMachine<M>(factory.create(rules), capacity);
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "[" + size() + " states, " + hits + " hits, " + misses + " misses]";
+	}
+
+	private Entry getEntry(Set<Dob> state) {
+		Entry entry = entries.get(state);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(freeze(state), entry);
+		}
+		return entry;
+	}
+
+	private static Set<Dob> freeze(Set<Dob> state) {
+		if (state instanceof GameState || state instanceof ImmutableSet) return state;
+		return ImmutableSet.copyOf(state);
+	}
+
+	/**
+	 * @return true if the stored value is missing
+	 */
+	private boolean count(Object stored) {
+		if (stored == null) { misses++; return true; }
+		hits++;
+		return false;
+	}
+}
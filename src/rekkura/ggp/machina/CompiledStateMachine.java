@@ -0,0 +1,215 @@
+package rekkura.ggp.machina;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.state.model.StateMachine;
+import rekkura.util.Limiter;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * This machine runs the logic of a {@link PropNet} that was compiled into
+ * a class by the {@link PropNetCompiler}. The values of the nodes are
+ * kept in words of bits and every state is evaluated from scratch by
+ * straight-line code. States are the same {@link GameState}s as the
+ * states of a {@link PropNetStateMachine} on the same network. <br>
+ * <br>
+ * Compiling a game takes a while, so {@code withBudget} gives a factory
+ * that falls back to a {@link BackwardStateMachine} if the network can
+ * not be built and compiled within a budget, for example some part of
+ * the start clock.
+ * @author ptpham
+ *
+ */
+public class CompiledStateMachine implements GgpStateMachine {
+
+	/**
+	 * The generated code implements this. Both methods read and write
+	 * the values of the nodes in the given words.
+	 * @author ptpham
+	 *
+	 */
+	public interface Logic {
+		void evaluateState(long[] values);
+		void evaluateMove(long[] values);
+	}
+
+	public final PropNet net;
+	public final Logic logic;
+
+	private final long[] values;
+	private GameState loaded;
+
+	public CompiledStateMachine(PropNet net, Logic logic) {
+		this.net = net;
+		this.logic = logic;
+		this.values = new long[(net.size() + 63) / 64];
+		for (int node = 0; node < net.size(); node++) set(node, net.constants[node]);
+	}
+
+	/**
+	 * @return a machine for another thread that shares the compiled logic
+	 */
+	public CompiledStateMachine fork() { return new CompiledStateMachine(net, logic); }
+
+	@Override
+	public GameState getInitial() {
+		return net.initial;
+	}
+
+	@Override
+	public boolean isTerminal(Set<Dob> state) {
+		load(state);
+		return get(net.terminal);
+	}
+
+	@Override
+	public ListMultimap<Dob, Dob> getActions(Set<Dob> state) {
+		load(state);
+		return collectActions();
+	}
+
+	@Override
+	public Map<Dob, Integer> getGoals(Set<Dob> state) {
+		load(state);
+		return collectGoals();
+	}
+
+	@Override
+	public StateMachine.Examination<Dob> examine(Set<Dob> state) {
+		load(state);
+		return new StateMachine.Examination<Dob>(get(net.terminal), collectGoals(), collectActions());
+	}
+
+	@Override
+	public GameState nextState(Set<Dob> state, Map<Dob, Dob> actions) {
+		load(state);
+		BitSet inputs = PropNetStateMachine.toInputs(net, actions);
+		for (int i = 0; i < net.inputNodes.length; i++) set(net.inputNodes[i], inputs.get(i));
+		logic.evaluateMove(values);
+
+		BitSet bits = new BitSet(net.bases.size());
+		for (int i = 0; i < net.transitions.length; i++) {
+			if (get(net.transitions[i])) bits.set(i);
+		}
+		return loaded.next(bits);
+	}
+
+	private void load(Set<Dob> state) {
+		GameState next = net.bases.toState(state);
+		if (next.equals(loaded)) return;
+
+		for (int i = 0; i < net.baseNodes.length; i++) set(net.baseNodes[i], next.bits.get(i));
+		logic.evaluateState(values);
+		loaded = next;
+	}
+
+	private boolean get(int node) {
+		return (values[node >>> 6] & (1L << node)) != 0;
+	}
+
+	private void set(int node, boolean value) {
+		if (value) values[node >>> 6] |= 1L << node;
+		else values[node >>> 6] &= ~(1L << node);
+	}
+
+	private ListMultimap<Dob, Dob> collectActions() {
+		ListMultimap<Dob, Dob> result = ArrayListMultimap.create();
+		for (int i = 0; i < net.legalNodes.length; i++) {
+			if (!get(net.legalNodes[i])) continue;
+			Dob action = net.legals.get(i);
+			result.put(action.at(1), action);
+		}
+		return result;
+	}
+
+	private Map<Dob, Integer> collectGoals() {
+		Map<Dob, Integer> result = Maps.newHashMap();
+		for (int i = 0; i < net.goalNodes.length; i++) {
+			if (get(net.goalNodes[i])) result.put(net.goalRoles.get(i), net.goalValues[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @param rules
+	 * @return a machine for the compiled network of the rules
+	 * @throws IllegalStateException if the network does not compile
+	 */
+	public static CompiledStateMachine create(Collection<Rule> rules) {
+		PropNet net = PropNet.create(rules);
+		return new CompiledStateMachine(net, PropNetCompiler.compile(net));
+	}
+
+	/**
+	 * The network is built and compiled on another thread. If that does
+	 * not finish within the budget or fails, the factory logs why, gives 
+	 * up on it and creates a {@link BackwardStateMachine} instead. Grounding
+	 * stops on its own when the budget runs out and a network that is done
+	 * after the factory gave up is not compiled. The compiler does not 
+	 * listen to interrupts though, so a compilation that had already 
+	 * started keeps a core busy until it finishes, while the fallback is
+	 * being built.
+	 * @param millis
+	 * @return a factory for compiled machines for the standard
+	 * optimization of the rules
+	 */
+	public static GgpStateMachine.Factory<GgpStateMachine> withBudget(final long millis) {
+		return new GgpStateMachine.Factory<GgpStateMachine>() {
+			@Override public GgpStateMachine create(Collection<Rule> rules) {
+				final Set<Rule> optimized = optimizeStandard(rules);
+				final AtomicBoolean abandoned = new AtomicBoolean();
+				ExecutorService executor = Executors.newSingleThreadExecutor(DAEMONS);
+				Future<CompiledStateMachine> future = executor.submit(new Callable<CompiledStateMachine>() {
+					@Override public CompiledStateMachine call() {
+						PropNet net = PropNet.create(optimized, Limiter.forTime(millis));
+						if (abandoned.get()) throw new CancellationException("Gave up before compiling!");
+						return new CompiledStateMachine(net, PropNetCompiler.compile(net));
+					}
+				});
+				executor.shutdown();
+
+				Logger logger = Logger.getGlobal();
+				try { return future.get(millis, TimeUnit.MILLISECONDS); }
+				catch (TimeoutException e) {
+					logger.warning("Unable to compile the network within " + millis + " ms");
+				} catch (ExecutionException e) {
+					logger.log(Level.WARNING, "Unable to compile the network", e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				abandoned.set(true);
+				future.cancel(true);
+				return BackwardStateMachine.createForRules(optimized);
+			}
+		};
+	}
+
+	private static final ThreadFactory DAEMONS = new ThreadFactory() {
+		@Override public Thread newThread(Runnable runnable) {
+			Thread result = new Thread(runnable);
+			result.setDaemon(true);
+			return result;
+		}
+	};
+}
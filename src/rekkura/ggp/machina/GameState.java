@@ -0,0 +1,196 @@
+package rekkura.ggp.machina;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+import rekkura.logic.model.Dob;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable state of a game that is backed by a bit for each of
+ * an enumeration of the base propositions of the game. Besides the
+ * hash code that every set of dobs has, a state keeps a Zobrist hash:
+ * the XOR of a random key for each of its bases. Both are maintained
+ * incrementally by {@code next}, so a state that is derived from
+ * another only pays for the bases that changed. Two states over the
+ * same bases are compared by their Zobrist hashes before their bits,
+ * so states that differ are almost always told apart in one step. <br>
+ * <br>
+ * A state is still a set of dobs, so it can be handed to anything that
+ * takes one. Sets that are not states of the same bases have to be
+ * converted with {@link Bases#toState} before a machine can use them.
+ * @author ptpham
+ *
+ */
+public final class GameState extends AbstractSet<Dob> {
+
+	/**
+	 * The base propositions of a game in the order of the bits of
+	 * its states, along with the Zobrist key of each of them.
+	 * @author ptpham
+	 *
+	 */
+	public static class Bases {
+		public final Pool pool;
+		public final ImmutableList<Dob> dobs;
+		private final Map<Dob, Integer> index = Maps.newHashMap();
+		private final long[] keys;
+
+		/**
+		 * @param pool the pool that the bases were submerged in
+		 * @param dobs
+		 */
+		public Bases(Pool pool, List<Dob> dobs) {
+			this.pool = pool;
+			this.dobs = ImmutableList.copyOf(dobs);
+			this.keys = new long[dobs.size()];
+
+			// The keys only have to be different from each other,
+			// so they are drawn the same way every time.
+			Random rand = new Random(dobs.size());
+			for (int i = 0; i < keys.length; i++) {
+				index.put(this.dobs.get(i), i);
+				keys[i] = rand.nextLong();
+			}
+		}
+
+		public int size() { return dobs.size(); }
+
+		public Dob get(int index) { return dobs.get(index); }
+
+		/**
+		 * Dobs from other pools are submerged into the pool
+		 * of the bases before they are looked up.
+		 * @param dob
+		 * @return the position of the dob in the bases or
+		 * null if it is not one of them
+		 */
+		public Integer indexOf(Dob dob) {
+			Integer result = index.get(dob);
+			if (result == null) result = index.get(pool.dobs.submerge(dob));
+			return result;
+		}
+
+		/**
+		 * @param dobs
+		 * @return the state that holds the given dobs that are bases.
+		 * The others can never be true, so they are dropped.
+		 */
+		public GameState toState(Set<Dob> dobs) {
+			if (dobs instanceof GameState && ((GameState) dobs).bases == this) return (GameState) dobs;
+			BitSet bits = new BitSet(size());
+			for (Dob dob : dobs) {
+				Integer index = indexOf(dob);
+				if (index != null) bits.set(index);
+			}
+			return new GameState(this, bits);
+		}
+	}
+
+	public final Bases bases;
+	final BitSet bits;
+	private final long zobrist;
+	private final int size, hash;
+
+	/**
+	 * The state takes ownership of the bits.
+	 */
+	GameState(Bases bases, BitSet bits) {
+		long zobrist = 0;
+		int hash = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			zobrist ^= bases.keys[i];
+			hash += bases.get(i).hashCode();
+		}
+
+		this.bases = bases;
+		this.bits = bits;
+		this.zobrist = zobrist;
+		this.size = bits.cardinality();
+		this.hash = hash;
+	}
+
+	private GameState(Bases bases, BitSet bits, long zobrist, int hash) {
+		this.bases = bases;
+		this.bits = bits;
+		this.zobrist = zobrist;
+		this.size = bits.cardinality();
+		this.hash = hash;
+	}
+
+	/**
+	 * The hashes of the result are derived from the hashes of this
+	 * state and the bases that differ. The result takes ownership
+	 * of the bits.
+	 * @param bits
+	 * @return the state with the given bits
+	 */
+	GameState next(BitSet bits) {
+		BitSet changed = (BitSet) this.bits.clone();
+		changed.xor(bits);
+
+		long zobrist = this.zobrist;
+		int hash = this.hash;
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+			zobrist ^= bases.keys[i];
+			int dob = bases.get(i).hashCode();
+			hash += bits.get(i) ? dob : -dob;
+		}
+		return new GameState(bases, bits, zobrist, hash);
+	}
+
+	/**
+	 * @return the XOR of the keys of the bases that are true
+	 */
+	public long zobrist() { return zobrist; }
+
+	/**
+	 * @return a copy of the bits of the bases that are true
+	 */
+	public BitSet getBits() { return (BitSet) bits.clone(); }
+
+	@Override public int size() { return size; }
+
+	@Override public boolean contains(Object obj) {
+		Integer index = bases.index.get(obj);
+		return index != null && bits.get(index);
+	}
+
+	@Override public Iterator<Dob> iterator() {
+		return new Iterator<Dob>() {
+			int next = bits.nextSetBit(0);
+			@Override public boolean hasNext() { return next >= 0; }
+			@Override public Dob next() {
+				if (next < 0) throw new NoSuchElementException();
+				Dob result = bases.get(next);
+				next = bits.nextSetBit(next + 1);
+				return result;
+			}
+			@Override public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**
+	 * This is the same as the hash code of any other set of the
+	 * same dobs, so states can be mixed with other sets as keys.
+	 */
+	@Override public int hashCode() { return hash; }
+
+	@Override public boolean equals(Object other) {
+		if (other == this) return true;
+		if (other instanceof GameState && ((GameState) other).bases == bases) {
+			GameState state = (GameState) other;
+			return state.zobrist == zobrist && state.bits.equals(bits);
+		}
+		return super.equals(other);
+	}
+}
@@ -13,7 +13,8 @@ import rekkura.state.model.StateMachine;
 
 import com.google.common.collect.Sets;
 
-public interface GgpStateMachine extends StateMachine.Standard<Set<Dob>, Dob> {
+public interface GgpStateMachine extends StateMachine.Standard<Set<Dob>, Dob>, 
+	StateMachine.Examine<Set<Dob>, Dob> {
 
 	public static abstract class Factory<M extends GgpStateMachine> {
 		public abstract M create(Collection<Rule> rules);
@@ -62,6 +63,43 @@ public interface GgpStateMachine extends StateMachine.Standard<Set<Dob>, Dob> {
 		}
 	};
 	
+	/**
+	 * Machines from this factory ground the game into a {@link PropNet} 
+	 * and evaluate it instead of proving anything.
+	 */
+	public static final Factory<PropNetStateMachine> PROPNET_OSTD = 
+	new Factory<PropNetStateMachine>() {
+		@Override public PropNetStateMachine create(Collection<Rule> rules) {
+			return PropNetStateMachine.create(optimizeStandard(rules));
+		}
+	};
+	
+	public static final Factory<PropNetStateMachine> PROPNET = 
+	new Factory<PropNetStateMachine>() {
+		@Override public PropNetStateMachine create(Collection<Rule> rules) {
+			return PropNetStateMachine.create(rules);
+		}
+	};
+	
+	/**
+	 * Machines from this factory run the {@link PropNet} compiled into a 
+	 * class. If that takes longer than COMPILE_BUDGET milliseconds, the
+	 * factory creates the machine that {@code BACKWARD_PROVER_OSTD} would.
+	 */
+	public static final long COMPILE_BUDGET = 10000;
+	public static final Factory<GgpStateMachine> COMPILED_OSTD = CompiledStateMachine.withBudget(COMPILE_BUDGET);
+	
+	/**
+	 * Machines from this factory answer {@code getActions} and {@code getGoal}
+	 * for a single role without deriving anything about the other roles.
+	 */
+	public static final Factory<BackwardStateMachine> BACKWARD_PROVER_MAGIC = 
+	new Factory<BackwardStateMachine>() {
+		@Override public BackwardStateMachine create(Collection<Rule> rules) {
+			return BackwardStateMachine.createWithMagic(rules);
+		}
+	};
+	
 	public static final Factory<BackwardStateMachine> BACKWARD_PROVER = 
 	new Factory<BackwardStateMachine>() {
 		@Override public BackwardStateMachine create(Collection<Rule> rules) {
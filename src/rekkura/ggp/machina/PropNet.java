@@ -0,0 +1,549 @@
+package rekkura.ggp.machina;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rekkura.ggp.milleu.GameLogicContext;
+import rekkura.ggp.milleu.Grounding;
+import rekkura.logic.algorithm.Unifier;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+import rekkura.util.Limiter;
+import rekkura.util.Typoz;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+/**
+ * A propositional network is the grounded form of a game. Every ground
+ * dob that may ever be true is a node. A base node holds a true dob of
+ * the state and an input node holds a does dob. Every other proposition
+ * is an OR over the ANDs that ground the rules that generate it. Negative
+ * atoms go through NOT nodes and each base has a transition node that
+ * holds its value in the next state. <br>
+ * <br>
+ * Nodes that depend on neither bases nor inputs are evaluated once when
+ * the network is built. The rest are split into the nodes that only need
+ * the bases and the nodes that need the inputs, each in topological
+ * order. Rules may be recursive, so nodes that depend on each other are
+ * evaluated together from false until they stop changing. Negation is
+ * stratified, so these cycles never go through a NOT. <br>
+ * <br>
+ * The network never changes after it is built. The values of its nodes
+ * are kept by whoever evaluates it, so one network can be shared. Its
+ * pool is concurrent so that dobs from elsewhere can be looked up.
+ * @author ptpham
+ *
+ */
+public class PropNet {
+
+	public enum Type { BASE, INPUT, AND, OR, NOT, TRANSITION }
+
+	public final Pool pool;
+	public final GameLogicContext glc;
+
+	public final Type[] types;
+	public final int[][] inputs, outputs;
+
+	/**
+	 * The strongly connected components of the network in topological 
+	 * order and the component of each node. A component is cyclic if its 
+	 * nodes depend on each other.
+	 */
+	public final int[][] components;
+	public final int[] componentOf;
+	public final boolean[] cyclic;
+
+	/**
+	 * These are the values of every node right after the network is
+	 * built. They are only meaningful for the fixed nodes, which depend
+	 * on neither bases nor inputs and so never change.
+	 */
+	public final boolean[] constants, fixed;
+
+	/**
+	 * The true dobs of a state in the order of the bits of a state.
+	 * Their nodes and the nodes that hold their next values line up.
+	 */
+	public final GameState.Bases bases;
+	public final int[] baseNodes, transitions;
+
+	public final ImmutableList<Dob> actions;
+	public final int[] inputNodes;
+	public final Map<Dob, Integer> inputIndex = Maps.newHashMap();
+
+	/**
+	 * Each legal node is stored with the does dob for its action.
+	 */
+	public final ImmutableList<Dob> legals;
+	public final int[] legalNodes;
+
+	public final ImmutableList<Dob> goalRoles;
+	public final int[] goalNodes, goalValues;
+
+	public final int terminal;
+	public final GameState initial;
+
+	public final Schedule stateSchedule, moveSchedule;
+
+	/**
+	 * A schedule evaluates nodes in order. If {@code ends} is positive at
+	 * a position then the nodes from there up to the end depend on each
+	 * other and are evaluated until they stop changing.
+	 * @author ptpham
+	 *
+	 */
+	public static class Schedule {
+		public final int[] nodes, ends;
+
+		public Schedule(List<Integer> nodes, List<Integer> ends) {
+			this.nodes = Ints.toArray(nodes);
+			this.ends = Ints.toArray(ends);
+		}
+
+		/**
+		 * @param cycle nodes that depend on each other
+		 */
+		public Schedule(int[] cycle) {
+			this.nodes = cycle;
+			this.ends = new int[cycle.length];
+			this.ends[0] = cycle.length;
+		}
+
+		public int size() { return nodes.length; }
+	}
+
+	private PropNet(Builder builder) {
+		this.pool = builder.pool;
+		this.glc = builder.glc;
+
+		int size = builder.types.size();
+		this.types = builder.types.toArray(new Type[size]);
+		this.inputs = builder.inputs.toArray(new int[size][]);
+		this.outputs = invert(inputs);
+
+		this.bases = new GameState.Bases(pool, builder.bases);
+		this.baseNodes = Ints.toArray(builder.baseNodes);
+		this.transitions = Ints.toArray(builder.transitions);
+
+		this.actions = ImmutableList.copyOf(builder.actions);
+		this.inputNodes = Ints.toArray(builder.inputNodes);
+		for (int i = 0; i < actions.size(); i++) inputIndex.put(actions.get(i), i);
+
+		this.legals = ImmutableList.copyOf(builder.legals);
+		this.legalNodes = Ints.toArray(builder.legalNodes);
+		this.goalRoles = ImmutableList.copyOf(builder.goalRoles);
+		this.goalNodes = Ints.toArray(builder.goalNodes);
+		this.goalValues = Ints.toArray(builder.goalValues);
+		this.terminal = builder.terminal;
+
+		this.components = components(inputs).toArray(new int[0][]);
+		this.componentOf = new int[size];
+		this.cyclic = new boolean[components.length];
+
+		// Split the components into what is constant, what needs
+		// the bases and what needs the inputs
+		boolean[] base = new boolean[size], input = new boolean[size];
+		List<Integer> constantNodes = Lists.newArrayList(), constantEnds = Lists.newArrayList();
+		List<Integer> stateNodes = Lists.newArrayList(), stateEnds = Lists.newArrayList();
+		List<Integer> moveNodes = Lists.newArrayList(), moveEnds = Lists.newArrayList();
+		for (int i = 0; i < components.length; i++) {
+			int[] component = components[i];
+			for (int node : component) componentOf[node] = i;
+			cyclic[i] = component.length > 1 || Ints.contains(inputs[component[0]], component[0]);
+
+			boolean needsBase = false, needsInput = false;
+			for (int node : component) {
+				needsBase |= types[node] == Type.BASE;
+				needsInput |= types[node] == Type.INPUT;
+				for (int parent : inputs[node]) {
+					needsBase |= base[parent];
+					needsInput |= input[parent];
+				}
+			}
+			for (int node : component) {
+				base[node] = needsBase;
+				input[node] = needsInput;
+			}
+
+			if (needsInput) schedule(i, moveNodes, moveEnds);
+			else if (needsBase) schedule(i, stateNodes, stateEnds);
+			else schedule(i, constantNodes, constantEnds);
+		}
+
+		this.fixed = new boolean[size];
+		for (int node = 0; node < size; node++) fixed[node] = !base[node] && !input[node];
+		this.constants = new boolean[size];
+		evaluate(new Schedule(constantNodes, constantEnds), constants);
+		this.stateSchedule = new Schedule(stateNodes, stateEnds);
+		this.moveSchedule = new Schedule(moveNodes, moveEnds);
+
+		Set<Dob> initial = Sets.newHashSet();
+		for (Map.Entry<Dob, Integer> entry : builder.inits.entrySet()) {
+			if (constants[entry.getValue()]) initial.add(entry.getKey());
+		}
+		this.initial = bases.toState(initial);
+	}
+
+	public int size() { return types.length; }
+
+	/**
+	 * Leaves and components that only hold a single node that does
+	 * not depend on itself are not evaluated to a fixed point.
+	 */
+	private void schedule(int index, List<Integer> nodes, List<Integer> ends) {
+		int[] component = components[index];
+		boolean leaf = types[component[0]] == Type.BASE || types[component[0]] == Type.INPUT;
+		if (component.length == 1 && leaf) return;
+
+		int end = cyclic[index] ? nodes.size() + component.length : 0;
+		for (int node : component) {
+			nodes.add(node);
+			ends.add(end);
+			end = 0;
+		}
+	}
+
+	/**
+	 * Evaluates the nodes of the schedule from the values of
+	 * everything that they depend on.
+	 * @param schedule
+	 * @param values
+	 */
+	public void evaluate(Schedule schedule, boolean[] values) {
+		int[] nodes = schedule.nodes, ends = schedule.ends;
+		for (int i = 0; i < nodes.length; i++) {
+			int end = ends[i];
+			if (end == 0) {
+				values[nodes[i]] = compute(nodes[i], values);
+				continue;
+			}
+
+			for (int j = i; j < end; j++) values[nodes[j]] = false;
+			boolean changed = true;
+			while (changed) {
+				changed = false;
+				for (int j = i; j < end; j++) {
+					int node = nodes[j];
+					boolean value = compute(node, values);
+					if (value == values[node]) continue;
+					values[node] = value;
+					changed = true;
+				}
+			}
+			i = end - 1;
+		}
+	}
+
+	public boolean compute(int node, boolean[] values) {
+		int[] parents = inputs[node];
+		switch (types[node]) {
+		case AND:
+			for (int parent : parents) if (!values[parent]) return false;
+			return true;
+		case OR:
+			for (int parent : parents) if (values[parent]) return true;
+			return false;
+		case NOT: return !values[parents[0]];
+		case TRANSITION: return values[parents[0]];
+		default: return values[node];
+		}
+	}
+
+	/**
+	 * This keeps the values of a network up to date as its bases and inputs
+	 * change. Each AND and OR counts how many of its inputs are true, so a
+	 * node that flips only touches the nodes that it feeds. The components 
+	 * that might change are visited in topological order, so each one is
+	 * looked at once per propagation. Counts can not tell whether a cycle 
+	 * still has support from outside, so a cyclic component is evaluated
+	 * to a fixed point again instead.
+	 * @author ptpham
+	 *
+	 */
+	public static class Propagation {
+		public final PropNet net;
+		public final boolean[] values;
+		private final int[] counts;
+		private final BitSet dirty;
+
+		/**
+		 * The values start out with every base and input false.
+		 * @param net
+		 */
+		public Propagation(PropNet net) {
+			this.net = net;
+			this.values = net.constants.clone();
+			net.evaluate(net.stateSchedule, values);
+			net.evaluate(net.moveSchedule, values);
+
+			this.counts = new int[net.size()];
+			for (int node = 0; node < counts.length; node++) {
+				for (int parent : net.inputs[node]) if (values[parent]) counts[node]++;
+			}
+			this.dirty = new BitSet(net.components.length);
+		}
+
+		/**
+		 * Sets the value of a base or input node. Nothing that 
+		 * depends on it changes until {@code propagate}.
+		 * @param node
+		 * @param value
+		 */
+		public void set(int node, boolean value) {
+			if (values[node] == value) return;
+			values[node] = value;
+			flipped(node);
+		}
+
+		public void propagate() {
+			for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+				if (net.cyclic[i]) settle(net.components[i]);
+				else {
+					int node = net.components[i][0];
+					boolean value = compute(node);
+					if (value != values[node]) {
+						values[node] = value;
+						flipped(node);
+					}
+				}
+				dirty.clear(i);
+			}
+		}
+
+		private boolean compute(int node) {
+			switch (net.types[node]) {
+			case AND: return counts[node] == net.inputs[node].length;
+			case OR: return counts[node] > 0;
+			default: return net.compute(node, values);
+			}
+		}
+
+		private void settle(int[] component) {
+			boolean[] old = new boolean[component.length];
+			for (int i = 0; i < component.length; i++) old[i] = values[component[i]];
+			net.evaluate(new Schedule(component), values);
+			for (int i = 0; i < component.length; i++) {
+				if (values[component[i]] != old[i]) flipped(component[i]);
+			}
+		}
+
+		private void flipped(int node) {
+			int delta = values[node] ? 1 : -1;
+			for (int child : net.outputs[node]) {
+				counts[child] += delta;
+				dirty.set(net.componentOf[child]);
+			}
+		}
+	}
+
+	private static int[][] invert(int[][] edges) {
+		int[] sizes = new int[edges.length];
+		for (int[] targets : edges) for (int target : targets) sizes[target]++;
+
+		int[][] result = new int[edges.length][];
+		for (int i = 0; i < edges.length; i++) result[i] = new int[sizes[i]];
+		Arrays.fill(sizes, 0);
+		for (int i = 0; i < edges.length; i++) {
+			for (int target : edges[i]) result[target][sizes[target]++] = i;
+		}
+		return result;
+	}
+
+	/**
+	 * Tarjan's algorithm without recursion. The components come out
+	 * after every component that they depend on.
+	 * @param inputs
+	 * @return
+	 */
+	private static List<int[]> components(int[][] inputs) {
+		int size = inputs.length, counter = 0, top = 0, depth = 0;
+		int[] index = new int[size], low = new int[size], next = new int[size];
+		int[] stack = new int[size], calls = new int[size];
+		boolean[] stacked = new boolean[size];
+		Arrays.fill(index, -1);
+
+		List<int[]> result = Lists.newArrayList();
+		for (int root = 0; root < size; root++) {
+			if (index[root] >= 0) continue;
+			index[root] = low[root] = counter++;
+			stack[top++] = root;
+			stacked[root] = true;
+			calls[depth++] = root;
+
+			while (depth > 0) {
+				int node = calls[depth - 1];
+				if (next[node] < inputs[node].length) {
+					int parent = inputs[node][next[node]++];
+					if (index[parent] < 0) {
+						index[parent] = low[parent] = counter++;
+						stack[top++] = parent;
+						stacked[parent] = true;
+						calls[depth++] = parent;
+					} else if (stacked[parent]) low[node] = Math.min(low[node], index[parent]);
+					continue;
+				}
+
+				depth--;
+				if (depth > 0) {
+					int caller = calls[depth - 1];
+					low[caller] = Math.min(low[caller], low[node]);
+				}
+				if (low[node] != index[node]) continue;
+
+				int start = top - 1;
+				while (stack[start] != node) start--;
+				int[] component = Arrays.copyOfRange(stack, start, top);
+				for (int member : component) stacked[member] = false;
+				top = start;
+				result.add(component);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Grounds the given rules with a {@link Grounding} and builds the
+	 * network for them. Negation is released while grounding, so the
+	 * network holds every proposition that might ever be true.
+	 * @param rules
+	 * @return
+	 */
+	public static PropNet create(Collection<Rule> rules) {
+		return create(rules, Limiter.forOperations());
+	}
+
+	/**
+	 * @param rules
+	 * @param limiter the limiter for grounding
+	 * @return
+	 * @throws IllegalStateException if the limiter runs out
+	 */
+	public static PropNet create(Collection<Rule> rules, Limiter limiter) {
+		Grounding grounding = Grounding.create(rules, Pool.createConcurrent(), limiter);
+		Preconditions.checkState(grounding.complete, "Unable to ground the rules in time!");
+		return new PropNet(new Builder(grounding));
+	}
+
+	private static class Builder {
+		final Pool pool;
+		final GameLogicContext glc;
+		final Set<Dob> universe = Sets.newHashSet();
+
+		final List<Type> types = Lists.newArrayList();
+		final List<int[]> inputs = Lists.newArrayList();
+		final Map<Dob, Integer> nodes = Maps.newHashMap();
+		final Map<Integer, Integer> negations = Maps.newHashMap();
+		final Map<Integer, List<Integer>> instances = Maps.newHashMap();
+
+		final List<Dob> bases = Lists.newArrayList(), actions = Lists.newArrayList();
+		final List<Integer> baseNodes = Lists.newArrayList(), transitions = Lists.newArrayList();
+		final List<Integer> inputNodes = Lists.newArrayList();
+		final List<Dob> legals = Lists.newArrayList(), goalRoles = Lists.newArrayList();
+		final List<Integer> legalNodes = Lists.newArrayList();
+		final List<Integer> goalNodes = Lists.newArrayList(), goalValues = Lists.newArrayList();
+		final Map<Dob, Integer> inits = Maps.newHashMap();
+		int terminal;
+
+		Builder(Grounding grounding) {
+			this.pool = grounding.pool;
+			this.glc = grounding.glc;
+			universe.addAll(grounding.atoms);
+
+			// Each ground rule is an AND under the OR of its head
+			int[] atoms = new int[grounding.atoms.size()];
+			for (int i = 0; i < atoms.length; i++) atoms[i] = node(grounding.atoms.get(i));
+			for (int i = 0; i < grounding.size(); i++) {
+				int head = atoms[grounding.heads[i]];
+				if (types.get(head) != Type.OR) continue;
+
+				int[] parents = new int[grounding.bodies[i].length];
+				for (int j = 0; j < parents.length; j++) {
+					int atom = grounding.bodies[i][j];
+					parents[j] = atom >= 0 ? atoms[atom] : negation(atoms[~atom]);
+				}
+				instances.get(head).add(add(Type.AND, parents));
+			}
+
+			for (Dob dob : grounding.atoms) {
+				if (matches(glc.LEGAL_QUERY, dob)) {
+					legals.add(pool.render(dob, glc.LEGAL_UNIFY));
+					legalNodes.add(node(dob));
+				} else if (matches(glc.GOAL_QUERY, dob)) {
+					Integer value = Typoz.lightParseInt(dob.at(2).name);
+					if (value == null) continue;
+					goalRoles.add(dob.at(1));
+					goalNodes.add(node(dob));
+					goalValues.add(value);
+				} else if (matches(glc.INIT_QUERY, dob)) {
+					inits.put(pool.render(dob, glc.INIT_UNIFY), node(dob));
+				}
+			}
+			this.terminal = node(glc.TERMINAL);
+
+			// Every base gets a transition from its next, even if
+			// nothing can generate the next
+			for (int i = 0; i < bases.size(); i++) {
+				Dob next = pool.render(bases.get(i), inverse(glc.NEXT_UNIFY));
+				transitions.add(add(Type.TRANSITION, node(next)));
+			}
+
+			for (Map.Entry<Integer, List<Integer>> entry : instances.entrySet()) {
+				inputs.set(entry.getKey(), Ints.toArray(entry.getValue()));
+			}
+		}
+
+		int node(Dob dob) {
+			Integer result = nodes.get(dob);
+			if (result != null) return result;
+			universe.add(dob);
+
+			if (matches(glc.TRUE_QUERY, dob)) {
+				result = add(Type.BASE);
+				bases.add(dob);
+				baseNodes.add(result);
+			} else if (matches(glc.DOES_QUERY, dob)) {
+				result = add(Type.INPUT);
+				actions.add(dob);
+				inputNodes.add(result);
+			} else {
+				result = add(Type.OR);
+				instances.put(result, Lists.<Integer>newArrayList());
+			}
+
+			nodes.put(dob, result);
+			return result;
+		}
+
+		int negation(int node) {
+			Integer result = negations.get(node);
+			if (result == null) negations.put(node, result = add(Type.NOT, node));
+			return result;
+		}
+
+		int add(Type type, int... parents) {
+			types.add(type);
+			inputs.add(parents);
+			return types.size() - 1;
+		}
+
+		boolean matches(Dob query, Dob dob) {
+			return Unifier.unifyVars(query, dob, glc.GENERIC_VAR_LIST) != null;
+		}
+
+		static Map<Dob, Dob> inverse(Map<Dob, Dob> unify) {
+			Map<Dob, Dob> result = Maps.newHashMap();
+			for (Map.Entry<Dob, Dob> entry : unify.entrySet()) result.put(entry.getValue(), entry.getKey());
+			return result;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package rekkura.ggp.machina;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * This writes the schedules of a {@link PropNet} out as the source of
+ * a class with a line of bit operations for each node and compiles it
+ * with the system Java compiler. The value of node i is bit (i % 64) of
+ * word (i / 64). Fixed nodes are folded into the code. <br>
+ * <br>
+ * The JIT does not compile methods past a few thousand bytes of
+ * bytecode, so the code is split into methods of about METHOD_TERMS
+ * reads of other nodes. Cycles are not split and are evaluated in a loop
+ * until they stop changing. An AND or OR with more than CHAIN_TERMS
+ * inputs is folded in over several statements to keep javac from
+ * recursing too deeply.
+ * @author ptpham
+ *
+ */
+public class PropNetCompiler {
+
+	public static final int METHOD_TERMS = 384, CHAIN_TERMS = 128;
+
+	/**
+	 * Writing a node back costs about as much bytecode as this many reads.
+	 */
+	private static final int NODE_TERMS = 3;
+	private static final String ZERO = "0L", ONE = "1L";
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private final PropNet net;
+	private final StringBuilder source = new StringBuilder();
+	private final List<String> methods = Lists.newArrayList();
+	private int terms;
+
+	private PropNetCompiler(PropNet net) { this.net = net; }
+
+	/**
+	 * @param net
+	 * @return the logic of the network compiled into a new class
+	 * @throws IllegalStateException if there is no system compiler or
+	 * the generated source does not compile
+	 */
+	public static CompiledStateMachine.Logic compile(PropNet net) {
+		final String name = "PropNetLogic" + counter.incrementAndGet();
+		String source = generate(net, name);
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		Preconditions.checkState(compiler != null, "There is no system Java compiler!");
+
+		final Map<String, ByteArrayOutputStream> classes = Maps.newHashMap();
+		JavaFileManager manager = new ForwardingJavaFileManager<JavaFileManager>(
+			compiler.getStandardFileManager(null, null, null)) {
+			@Override public JavaFileObject getJavaFileForOutput(Location location,
+				final String className, JavaFileObject.Kind kind, FileObject sibling) {
+				return new SimpleJavaFileObject(URI.create("bytes:///" + className), kind) {
+					@Override public OutputStream openOutputStream() {
+						ByteArrayOutputStream result = new ByteArrayOutputStream();
+						classes.put(className, result);
+						return result;
+					}
+				};
+			}
+		};
+
+		List<String> options = ImmutableList.of("-g:none", "-nowarn",
+			"-classpath", System.getProperty("java.class.path"));
+		List<JavaFileObject> units = ImmutableList.of(asSource(name, source));
+		StringWriter output = new StringWriter();
+		boolean success = compiler.getTask(output, manager, null, options, null, units).call();
+		Preconditions.checkState(success && classes.containsKey(name), "Unable to compile the network!\n%s", output);
+
+		final byte[] bytes = classes.get(name).toByteArray();
+		ClassLoader loader = new ClassLoader(CompiledStateMachine.Logic.class.getClassLoader()) {
+			@Override protected Class<?> findClass(String className) throws ClassNotFoundException {
+				if (!className.equals(name)) throw new ClassNotFoundException(className);
+				return defineClass(className, bytes, 0, bytes.length);
+			}
+		};
+
+		try {
+			return (CompiledStateMachine.Logic) loader.loadClass(name).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param net
+	 * @param name
+	 * @return the source of a class with the given name that
+	 * evaluates the schedules of the network
+	 */
+	public static String generate(PropNet net, String name) {
+		PropNetCompiler compiler = new PropNetCompiler(net);
+		String state = compiler.generate("state", net.stateSchedule);
+		String move = compiler.generate("move", net.moveSchedule);
+
+		StringBuilder result = new StringBuilder();
+		result.append("public final class ").append(name).append(" implements ")
+			.append(CompiledStateMachine.Logic.class.getCanonicalName()).append(" {\n");
+		result.append("\tpublic void evaluateState(long[] v) {").append(state).append("}\n");
+		result.append("\tpublic void evaluateMove(long[] v) {").append(move).append("}\n");
+		for (String method : compiler.methods) result.append(method);
+		result.append("}\n");
+		return result.toString();
+	}
+
+	/**
+	 * @return the calls to the methods that evaluate the schedule
+	 */
+	private String generate(String prefix, PropNet.Schedule schedule) {
+		StringBuilder calls = new StringBuilder();
+		int[] nodes = schedule.nodes, ends = schedule.ends;
+		for (int i = 0; i < nodes.length; i++) {
+			if (source.length() == 0 || terms > METHOD_TERMS) {
+				flush();
+				String method = prefix + methods.size();
+				calls.append(' ').append(method).append("(v);");
+				source.append("\tprivate static void ").append(method).append("(long[] v) {\n");
+				source.append("\t\tlong x;\n");
+			}
+
+			int end = ends[i];
+			if (end == 0) {
+				assign(nodes[i]);
+				continue;
+			}
+
+			// The cycle starts from false
+			for (int j = i; j < end; j++) {
+				source.append("\t\t").append(word(nodes[j])).append(" &= ~")
+					.append(mask(nodes[j])).append(";\n");
+			}
+			source.append("\t\tfor (boolean changed = true; changed; ) {\n");
+			source.append("\t\t\tchanged = false;\n");
+			for (int j = i; j < end; j++) {
+				compute(nodes[j], "\t\t\t");
+				source.append("\t\t\tif (x != ").append(read(nodes[j])).append(") { ")
+					.append(word(nodes[j])).append(" ^= ").append(mask(nodes[j]))
+					.append("; changed = true; }\n");
+			}
+			source.append("\t\t}\n");
+			i = end - 1;
+		}
+		flush();
+		return calls.append(' ').toString();
+	}
+
+	private void flush() {
+		if (source.length() == 0) return;
+		methods.add(source.append("\t}\n").toString());
+		source.setLength(0);
+		terms = 0;
+	}
+
+	private void assign(int node) {
+		terms += NODE_TERMS;
+		compute(node, "\t\t");
+		source.append("\t\t").append(word(node)).append(" = ").append(word(node))
+			.append(" & ~").append(mask(node)).append(" | x << ").append(node & 63).append(";\n");
+	}
+
+	/**
+	 * Writes statements that leave the value of the node in x.
+	 */
+	private void compute(int node, String indent) {
+		int[] parents = net.inputs[node];
+		switch (net.types[node]) {
+		case AND: chain(parents, true, indent); break;
+		case OR: chain(parents, false, indent); break;
+		case NOT: {
+			String parent = term(parents[0]);
+			if (parent == ZERO || parent == ONE) parent = parent == ZERO ? ONE : ZERO;
+			else parent = "~" + parent + " & 1L";
+			source.append(indent).append("x = ").append(parent).append(";\n");
+			break;
+		}
+		case TRANSITION: {
+			String parent = term(parents[0]);
+			if (parent != ZERO && parent != ONE) parent += " & 1L";
+			source.append(indent).append("x = ").append(parent).append(";\n");
+			break;
+		}
+		default: source.append(indent).append("x = ").append(read(node)).append(";\n");
+		}
+	}
+
+	/**
+	 * Folds the parents together with ANDs or ORs. A parent that is a
+	 * constant either decides the value or is left out.
+	 */
+	private void chain(int[] parents, boolean and, String indent) {
+		String decides = and ? ZERO : ONE;
+		List<String> reads = Lists.newArrayList();
+		for (int parent : parents) {
+			String term = term(parent);
+			if (term == decides) {
+				source.append(indent).append("x = ").append(decides).append(";\n");
+				return;
+			}
+			if (term != ZERO && term != ONE) reads.add(term);
+		}
+
+		String operator = and ? " & " : " | ";
+		if (reads.size() == 0) reads.add(and ? ONE : ZERO);
+		for (int i = 0; i < reads.size(); i += CHAIN_TERMS) {
+			List<String> chunk = reads.subList(i, Math.min(reads.size(), i + CHAIN_TERMS));
+			source.append(indent).append(i == 0 ? "x = " : "x" + operator.trim() + "= ")
+				.append(Joiner.on(operator).join(chunk)).append(";\n");
+		}
+		source.append(indent).append("x &= 1L;\n");
+	}
+
+	/**
+	 * @return ZERO or ONE if the node is constant and otherwise the
+	 * word of the node shifted so that its bit is the lowest bit
+	 */
+	private String term(int node) {
+		if (net.fixed[node]) return net.constants[node] ? ONE : ZERO;
+		terms++;
+		return "(v[" + (node >>> 6) + "] >>> " + (node & 63) + ")";
+	}
+
+	private static String read(int node) {
+		return "(v[" + (node >>> 6) + "] >>> " + (node & 63) + " & 1L)";
+	}
+
+	private static String word(int node) { return "v[" + (node >>> 6) + "]"; }
+
+	private static String mask(int node) { return "(1L << " + (node & 63) + ")"; }
+
+	private static JavaFileObject asSource(String name, final String source) {
+		return new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override public CharSequence getCharContent(boolean ignoreEncodingErrors) { return source; }
+		};
+	}
+}
@@ -0,0 +1,190 @@
+package rekkura.ggp.machina;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.state.model.StateMachine;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * This machine evaluates a {@link PropNet} instead of proving anything.
+ * The states that come out of it are {@link GameState}s over the bases
+ * of the network. Any other set of dobs also works as a state, but it
+ * has to be converted to bits first. Dobs that are not bases of the
+ * network can never be true, so they are dropped. <br>
+ * <br>
+ * The values of the network are kept for the last state that was asked
+ * about, so asking several things about the same state only evaluates
+ * the nodes that need the bases once. A differential machine goes further 
+ * and only propagates the bases and inputs that changed since the last 
+ * question through a {@link PropNet.Propagation}. Consecutive states of a
+ * playout differ in a few bases, so a step then costs about as much as
+ * the change instead of the whole network. Use {@code fork} to get a 
+ * machine for another thread that shares the network.
+ * @author ptpham
+ *
+ */
+public class PropNetStateMachine implements GgpStateMachine {
+
+	public final PropNet net;
+
+	private final boolean[] values;
+	private final PropNet.Propagation propagation;
+	private GameState loaded;
+	private BitSet applied = new BitSet();
+
+	public PropNetStateMachine(PropNet net) {
+		this(net, true);
+	}
+
+	/**
+	 * @param net
+	 * @param differential whether to propagate changes instead
+	 * of evaluating everything again for each new state
+	 */
+	public PropNetStateMachine(PropNet net, boolean differential) {
+		this.net = net;
+		if (differential) {
+			this.propagation = new PropNet.Propagation(net);
+			this.values = propagation.values;
+			this.loaded = net.bases.toState(ImmutableSet.<Dob>of());
+		} else {
+			this.propagation = null;
+			this.values = net.constants.clone();
+		}
+	}
+
+	public boolean isDifferential() { return propagation != null; }
+
+	public PropNetStateMachine fork() { return new PropNetStateMachine(net, isDifferential()); }
+
+	@Override
+	public GameState getInitial() {
+		return net.initial;
+	}
+
+	@Override
+	public boolean isTerminal(Set<Dob> state) {
+		load(state);
+		return values[net.terminal];
+	}
+
+	@Override
+	public ListMultimap<Dob, Dob> getActions(Set<Dob> state) {
+		load(state);
+		return collectActions();
+	}
+
+	@Override
+	public Map<Dob, Integer> getGoals(Set<Dob> state) {
+		load(state);
+		return collectGoals();
+	}
+
+	@Override
+	public StateMachine.Examination<Dob> examine(Set<Dob> state) {
+		load(state);
+		return new StateMachine.Examination<Dob>(values[net.terminal], collectGoals(), collectActions());
+	}
+
+	@Override
+	public GameState nextState(Set<Dob> state, Map<Dob, Dob> actions) {
+		load(state);
+		BitSet inputs = toInputs(net, actions);
+
+		if (propagation != null) {
+			update(applied, inputs, net.inputNodes);
+			propagation.propagate();
+			applied = inputs;
+		} else {
+			for (int i = 0; i < net.inputNodes.length; i++) values[net.inputNodes[i]] = inputs.get(i);
+			net.evaluate(net.moveSchedule, values);
+		}
+
+		BitSet bits = new BitSet(net.bases.size());
+		for (int i = 0; i < net.transitions.length; i++) {
+			if (values[net.transitions[i]]) bits.set(i);
+		}
+		return loaded.next(bits);
+	}
+
+	/**
+	 * @param dobs
+	 * @return the state of this machine that holds the
+	 * given dobs that are bases of the network
+	 */
+	public GameState toState(Set<Dob> dobs) {
+		return net.bases.toState(dobs);
+	}
+
+	/**
+	 * Actions from other pools are submerged into the
+	 * pool of the network before they are looked up.
+	 * @return the bits of the inputs for the given actions
+	 */
+	static BitSet toInputs(PropNet net, Map<Dob, Dob> actions) {
+		BitSet result = new BitSet(net.actions.size());
+		for (Dob action : actions.values()) {
+			Integer index = net.inputIndex.get(action);
+			if (index == null) index = net.inputIndex.get(net.pool.dobs.submerge(action));
+			if (index != null) result.set(index);
+		}
+		return result;
+	}
+
+	private void load(Set<Dob> state) {
+		GameState next = toState(state);
+		if (next.equals(loaded)) return;
+
+		if (propagation != null) {
+			update(loaded.bits, next.bits, net.baseNodes);
+			propagation.propagate();
+		} else {
+			for (int i = 0; i < net.baseNodes.length; i++) values[net.baseNodes[i]] = next.bits.get(i);
+			net.evaluate(net.stateSchedule, values);
+		}
+		loaded = next;
+	}
+
+	/**
+	 * Sets the nodes whose bits differ between what was set 
+	 * before and what should be set now.
+	 */
+	private void update(BitSet before, BitSet after, int[] nodes) {
+		BitSet changed = (BitSet) before.clone();
+		changed.xor(after);
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+			propagation.set(nodes[i], after.get(i));
+		}
+	}
+
+	private ListMultimap<Dob, Dob> collectActions() {
+		ListMultimap<Dob, Dob> result = ArrayListMultimap.create();
+		for (int i = 0; i < net.legalNodes.length; i++) {
+			if (!values[net.legalNodes[i]]) continue;
+			Dob action = net.legals.get(i);
+			result.put(action.at(1), action);
+		}
+		return result;
+	}
+
+	private Map<Dob, Integer> collectGoals() {
+		Map<Dob, Integer> result = Maps.newHashMap();
+		for (int i = 0; i < net.goalNodes.length; i++) {
+			if (values[net.goalNodes[i]]) result.put(net.goalRoles.get(i), net.goalValues[i]);
+		}
+		return result;
+	}
+
+	public static PropNetStateMachine create(Collection<Rule> rules) {
+		return new PropNetStateMachine(PropNet.create(rules));
+	}
+}
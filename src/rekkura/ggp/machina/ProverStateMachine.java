@@ -1,5 +1,6 @@
 package rekkura.ggp.machina;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -14,10 +15,12 @@ import rekkura.logic.prover.StratifiedForward;
 import rekkura.logic.prover.StratifiedProver;
 import rekkura.logic.structure.Pool;
 import rekkura.logic.structure.Ruletta;
+import rekkura.state.model.StateMachine;
 
 import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 public class ProverStateMachine implements GgpStateMachine {
@@ -25,41 +28,128 @@ public class ProverStateMachine implements GgpStateMachine {
 	public final StratifiedProver prover;
 	public final GameLogicContext glc;
 	public final Ruletta rta;
+
+	/**
+	 * Each of these only holds the rules that its queries depend on.
+	 * They are all the full prover if the machine was not sliced.
+	 */
+	private final StratifiedProver terminal, goals, legal, next, examined;
 	
 	public ProverStateMachine(StratifiedProver prover) {
+		this(prover, null);
+	}
+
+	/**
+	 * The terminal, goal, legal and next queries are each proven by a 
+	 * prover from the given factory that only holds their slice of the 
+	 * rules, so asking one of them never proves what only the others need.
+	 * The full prover is still used for the initial state.
+	 * @param prover
+	 * @param slicer this may be null to prove everything with the full prover
+	 */
+	public ProverStateMachine(StratifiedProver prover, StratifiedProver.Factory slicer) {
 		this.glc = new GameLogicContext(prover.pool, prover.rta);
 		this.rta = prover.rta;
 		this.prover = prover;
+
+		this.terminal = slice(slicer, glc.TERMINAL);
+		this.goals = slice(slicer, glc.GOAL_QUERY);
+		this.legal = slice(slicer, glc.LEGAL_QUERY);
+		this.next = slice(slicer, glc.NEXT_QUERY);
+		this.examined = slice(slicer, glc.TERMINAL, glc.GOAL_QUERY, glc.LEGAL_QUERY);
+		prover.pool.dobs.mark();
+	}
+	
+	private ProverStateMachine(ProverStateMachine shared) {
+		Map<StratifiedProver, StratifiedProver> forks = Maps.newIdentityHashMap();
+		for (StratifiedProver prover : shared.getProvers()) forks.put(prover, prover.fork());
+
+		this.glc = shared.glc;
+		this.rta = shared.rta;
+		this.prover = forks.get(shared.prover);
+		this.terminal = forks.get(shared.terminal);
+		this.goals = forks.get(shared.goals);
+		this.legal = forks.get(shared.legal);
+		this.next = forks.get(shared.next);
+		this.examined = forks.get(shared.examined);
+	}
+	
+	/**
+	 * @return a machine for another thread that shares the game with
+	 * this one. This machine must have been created with a concurrent pool.
+	 */
+	public ProverStateMachine fork() {
+		return new ProverStateMachine(this);
+	}
+	
+	/**
+	 * Everything in the pool that was submerged after this machine was
+	 * built is forgotten. States from before still work as arguments.
+	 * Forks must not be in use while this happens.
+	 */
+	public void reclaim() {
+		Set<StratifiedProver> slices = getProvers();
+		slices.remove(prover);
+		for (StratifiedProver slice : slices) slice.clear();
+		prover.reclaim();
+		for (StratifiedProver slice : slices) slice.cachet.reclaim();
 	}
 	
 	@Override
 	public Set<Dob> getInitial() {
-		return glc.extract(glc.TRUE_QUERY, proverPass(Lists.<Dob>newArrayList(), glc.INIT_UNIFY));
+		return glc.extract(glc.TRUE_QUERY, proverPass(prover, Lists.<Dob>newArrayList(), glc.INIT_UNIFY));
 	}
 
 	@Override public boolean isTerminal(Set<Dob> dobs) {
-		return this.proverPass(dobs, glc.EMTPY_UNIFY).contains(glc.TERMINAL);
+		return this.proverPass(terminal, dobs, glc.EMTPY_UNIFY).contains(glc.TERMINAL);
 	}
 	
 	@Override
 	public ListMultimap<Dob, Dob> getActions(Set<Dob> state) {
-		return glc.extractActions(proverPass(state, glc.LEGAL_UNIFY));
+		return glc.extractActions(proverPass(legal, state, glc.LEGAL_UNIFY));
 	}
 
 	@Override
 	public Set<Dob> nextState(Set<Dob> state, Map<Dob, Dob> actions) {
 		Iterable<Dob> truths = Iterables.concat(state, actions.values());
-		return glc.extract(glc.TRUE_QUERY, proverPass(truths, glc.NEXT_UNIFY));
+		return glc.extract(glc.TRUE_QUERY, proverPass(next, truths, glc.NEXT_UNIFY));
 	}
 
 	@Override
 	public Map<Dob, Integer> getGoals(Set<Dob> truths) {
-		return glc.extractGoals(proverPass(truths, glc.EMTPY_UNIFY));
+		return glc.extractGoals(proverPass(goals, truths, glc.EMTPY_UNIFY));
+	}
+
+	@Override
+	public StateMachine.Examination<Dob> examine(Set<Dob> state) {
+		return examine(proverPass(examined, state, glc.EMTPY_UNIFY), glc);
 	}
 	
-	private Set<Dob> proverPass(Iterable<Dob> truths, Map<Dob, Dob> unify) {
-		Set<Dob> proven = this.prover.proveAll(truths);
-		return submersiveReplace(proven, unify, this.prover.pool);
+	private Set<Dob> proverPass(StratifiedProver prover, Iterable<Dob> truths, Map<Dob, Dob> unify) {
+		Set<Dob> proven = prover.proveIncrementally(truths);
+		return submersiveReplace(proven, unify, prover.pool);
+	}
+
+	private StratifiedProver slice(StratifiedProver.Factory slicer, Dob... queries) {
+		if (slicer == null) return prover;
+		return slicer.create(rta.getSlice(Arrays.asList(queries), prover.pool), prover.pool);
+	}
+
+	private Set<StratifiedProver> getProvers() {
+		Set<StratifiedProver> result = Sets.newIdentityHashSet();
+		result.addAll(Arrays.asList(prover, terminal, goals, legal, next, examined));
+		return result;
+	}
+
+	/**
+	 * @param proven everything proven for a state and nothing else
+	 * @param glc
+	 * @return
+	 */
+	public static StateMachine.Examination<Dob> examine(Set<Dob> proven, GameLogicContext glc) {
+		Set<Dob> legal = glc.extract(glc.LEGAL_QUERY, proven);
+		ListMultimap<Dob, Dob> actions = glc.extractActions(submersiveReplace(legal, glc.LEGAL_UNIFY, glc.pool));
+		return new StateMachine.Examination<Dob>(proven.contains(glc.TERMINAL), glc.extractGoals(proven), actions);
 	}
 
 	public static Set<Dob> submersiveReplace(Set<Dob> proven, Map<Dob, Dob> unify, Pool pool) {
@@ -73,12 +163,20 @@ public class ProverStateMachine implements GgpStateMachine {
 	}
 	
 	public static ProverStateMachine createWithStratifiedForward(Collection<Rule> rules) {
+		return createWithStratifiedForward(rules, new Pool());
+	}
+	
+	public static ProverStateMachine createWithStratifiedForward(Collection<Rule> rules, Pool pool) {
 		List<Rule> augmented = GameLogicContext.augmentWithQueryRules(rules);
-		return new ProverStateMachine(new StratifiedForward(augmented));
+		return new ProverStateMachine(new StratifiedForward(augmented, pool), StratifiedProver.FORWARD_FACTORY);
 	}
 	
 	public static ProverStateMachine createWithStratifiedBackward(Collection<Rule> rules) {
+		return createWithStratifiedBackward(rules, new Pool());
+	}
+	
+	public static ProverStateMachine createWithStratifiedBackward(Collection<Rule> rules, Pool pool) {
 		List<Rule> augmented = GameLogicContext.augmentWithQueryRules(rules);
-		return new ProverStateMachine(new StratifiedBackward(augmented));
+		return new ProverStateMachine(new StratifiedBackward(augmented, pool), StratifiedProver.BACKWARD_FACTORY);
 	}
 }
@@ -112,15 +112,26 @@ public class GameLogicContext {
 		this.INPUT_UNIFY.put(this.INPUT, this.DOES);
 		this.BASE_UNIFY.put(this.BASE, this.TRUE);
 
+		this.staticRules.addAll(this.rta.allRules);
+		markMutable(ImmutableList.of(DOES_QUERY, TRUE_QUERY));
+	}
+
+	/**
+	 * Moves every rule that could be influenced by a dob of one of the 
+	 * given forms from the static rules to the mutable rules. Use this 
+	 * for inputs other than the state and the actions.
+	 * @param queries
+	 */
+	public void markMutable(Iterable<Dob> queries) {
 		Multimap<Rule, Rule> ruleToDepRule = HashMultimap.create();
 		Multimaps.invertFrom(this.rta.ruleToGenRule, ruleToDepRule);
 
 		Set<Rule> roots = Sets.newHashSet();
-		roots.addAll(Ruletta.filterNonConflictingBodies(DOES_QUERY, rta.allRules, pool));
-		roots.addAll(Ruletta.filterNonConflictingBodies(TRUE_QUERY, rta.allRules, pool));
+		for (Dob query : queries) {
+			roots.addAll(Ruletta.filterNonConflictingBodies(query, rta.allRules, pool));
+		}
 
 		mutableRules.addAll(OtmUtil.flood(ruleToDepRule, roots));
-		this.staticRules.addAll(this.rta.allRules);
 		this.staticRules.removeAll(mutableRules);
 	}
 
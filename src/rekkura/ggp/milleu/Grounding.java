@@ -0,0 +1,630 @@
+package rekkura.ggp.milleu;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rekkura.logic.algorithm.Unifier;
+import rekkura.logic.format.StandardFormat;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Matcher;
+import rekkura.logic.model.Rule;
+import rekkura.logic.model.Template;
+import rekkura.logic.model.Unification;
+import rekkura.logic.structure.Pool;
+import rekkura.logic.structure.Ruletta;
+import rekkura.util.Limiter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+/**
+ * A grounding holds every instance of the rules of a game that might
+ * ever fire. Atoms are numbered and each ground rule is the number of
+ * its head and the numbers of its body, where ~i stands for the negation
+ * of atom i. Negation is released while grounding, so the atoms are every
+ * dob that might ever be true. A negative atom that can never be true
+ * always holds, so it is left out of the ground rules. <br>
+ * <br>
+ * Grounding takes two passes. The first infers a domain for every
+ * variable of every rule. The values that a head can put at each of its
+ * arguments are propagated into the bodies that it generates, following
+ * {@link Ruletta#bodyToGenRule}, until no domain grows. Inits, bases and
+ * nexts feed the trues and legals and inputs feed the does. A rule with
+ * an empty domain can never fire. <br>
+ * <br>
+ * The second pass instantiates the rules that are left semi-naively:
+ * a rule is only joined again through atoms that are new since its last
+ * join. Each atom of a join is looked up by one of its constants or
+ * bound variables, the atom with the fewest candidates is joined next,
+ * and distincts are checked as soon as their variables are bound.
+ * @author ptpham
+ *
+ */
+public class Grounding {
+
+	public final Pool pool;
+	public final GameLogicContext glc;
+
+	/**
+	 * Every dob that might ever be true. The number of an atom is its
+	 * position in this list.
+	 */
+	public final ImmutableList<Dob> atoms;
+	public final ImmutableMap<Dob, Integer> index;
+
+	/**
+	 * Ground rule i derives atom heads[i] from the atoms in bodies[i].
+	 */
+	public final int[] heads;
+	public final int[][] bodies;
+
+	/**
+	 * For each rule of the game, the values that its variables might
+	 * take in the order of its variables.
+	 */
+	public final ImmutableMap<Rule, ImmutableList<ImmutableSet<Dob>>> domains;
+
+	/**
+	 * This is false if the limiter ran out before grounding finished.
+	 * Atoms and ground rules are then missing.
+	 */
+	public final boolean complete;
+
+	private Grounding(Builder builder) {
+		this.pool = builder.pool;
+		this.glc = builder.glc;
+		this.atoms = ImmutableList.copyOf(builder.atoms);
+		this.index = ImmutableMap.copyOf(builder.index);
+		this.complete = !builder.aborted;
+
+		this.heads = Ints.toArray(builder.heads);
+		this.bodies = new int[heads.length][];
+		for (int i = 0; i < heads.length; i++) {
+			List<Integer> body = Ints.asList(builder.positives.get(i));
+			body = Lists.newArrayList(body);
+			for (Dob negative : builder.negatives.get(i)) {
+				Integer atom = builder.index.get(negative);
+				if (atom != null) body.add(~atom);
+			}
+			this.bodies[i] = Ints.toArray(body);
+		}
+
+		ImmutableMap.Builder<Rule, ImmutableList<ImmutableSet<Dob>>> domains = ImmutableMap.builder();
+		for (Rule rule : builder.rta.allRules) {
+			if (builder.bridges.contains(rule) || builder.declarations.contains(rule)) continue;
+			ImmutableList.Builder<ImmutableSet<Dob>> domain = ImmutableList.builder();
+			for (Set<Dob> values : builder.domains.get(rule)) domain.add(ImmutableSet.copyOf(values));
+			domains.put(rule, domain.build());
+		}
+		this.domains = domains.build();
+	}
+
+	/**
+	 * @return the number of ground rules
+	 */
+	public int size() { return heads.length; }
+
+	public static Grounding create(Collection<Rule> rules) {
+		return create(rules, new Pool(), Limiter.forOperations());
+	}
+
+	/**
+	 * @param rules
+	 * @param pool the pool to submerge the rules and atoms into
+	 * @param limiter this is checked for every join and every ground
+	 * rule, so a time limiter keeps grounding within a start clock
+	 * @return
+	 */
+	public static Grounding create(Collection<Rule> rules, Pool pool, Limiter limiter) {
+		return new Grounding(new Builder(rules, pool, limiter));
+	}
+
+	/**
+	 * These move inits and nexts to trues and legals to does while
+	 * grounding. They are not part of the grounding.
+	 */
+	private static final ImmutableList<String> BRIDGES = ImmutableList.of(
+		"{(?x)|<((true)(?x)),true>:-<((init)(?x)),true>}",
+		"{(?x)|<((true)(?x)),true>:-<((next)(?x)),true>}",
+		"{(?r)(?m)|<((does)(?r)(?m)),true>:-<((legal)(?r)(?m)),true>}");
+
+	/**
+	 * The declarations of bases and inputs are generators of trues and
+	 * does like the bridges, so they widen the domains that are inferred.
+	 * Declared bases might never be true, so these are not joined.
+	 */
+	private static final ImmutableList<String> DECLARATIONS = ImmutableList.of(
+		"{(?x)|<((true)(?x)),true>:-<((base)(?x)),true>}",
+		"{(?r)(?m)|<((does)(?r)(?m)),true>:-<((input)(?r)(?m)),true>}");
+
+	private static class Builder {
+		final Pool pool;
+		final Ruletta rta;
+		final GameLogicContext glc;
+		final Limiter limiter;
+		final Set<Rule> bridges = Sets.newHashSet(), declarations = Sets.newHashSet();
+		final Map<Rule, List<Set<Dob>>> domains = Maps.newHashMap();
+
+		final List<Dob> atoms = Lists.newArrayList();
+		final Map<Dob, Integer> index = Maps.newHashMap();
+		final Map<String, List<Integer>> relations = Maps.newHashMap();
+		final Map<String, List<Probe>> probes = Maps.newHashMap();
+
+		final List<Integer> heads = Lists.newArrayList();
+		final List<int[]> positives = Lists.newArrayList();
+		final List<Dob[]> negatives = Lists.newArrayList();
+		boolean aborted;
+
+		Builder(Collection<Rule> raw, Pool pool, Limiter limiter) {
+			this.pool = pool;
+			this.limiter = limiter;
+
+			List<Rule> rules = Lists.newArrayList(raw);
+			List<Rule> helpers = StandardFormat.inst.rulesFromStrings(BRIDGES);
+			List<Rule> declared = StandardFormat.inst.rulesFromStrings(DECLARATIONS);
+			rules.addAll(helpers);
+			rules.addAll(declared);
+
+			this.rta = Ruletta.create(rules, pool);
+			this.glc = new GameLogicContext(pool, rta);
+			this.bridges.addAll(pool.rules.submerge(helpers));
+			this.declarations.addAll(pool.rules.submerge(declared));
+
+			limiter.begin();
+			infer();
+			if (aborted) return;
+
+			List<Join> joins = Lists.newArrayList();
+			for (Rule rule : rta.allRules) {
+				if (declarations.contains(rule) || !possible(rule)) continue;
+				joins.add(new Join(rule));
+			}
+			Collections.sort(joins, new Comparator<Join>() {
+				@Override public int compare(Join first, Join second) {
+					return rta.ruleOrder.count(first.rule) - rta.ruleOrder.count(second.rule);
+				}
+			});
+
+			// Go around until a whole round adds no atoms
+			for (int before = -1; before != atoms.size() && !aborted; ) {
+				before = atoms.size();
+				for (Join join : joins) {
+					if (aborted |= limiter.exceeded()) break;
+					join.evaluate();
+				}
+			}
+		}
+
+		/**
+		 * Grows the domains of the rules until none of them change.
+		 */
+		void infer() {
+			for (Rule rule : rta.allRules) {
+				List<Set<Dob>> domain = Lists.newArrayList();
+				for (int i = 0; i < rule.vars.size(); i++) domain.add(Sets.<Dob>newHashSet());
+				domains.put(rule, domain);
+			}
+
+			Map<Atom, Collection<Rule>> generators = Maps.newHashMap();
+			for (Rule rule : rta.allRules) {
+				for (Atom atom : rule.body) {
+					Dob form = Unifier.homogenize(atom.dob, rta.homvar, pool);
+					generators.put(atom, rta.bodyToGenRule.get(form));
+				}
+			}
+
+			Deque<Rule> queue = new ArrayDeque<Rule>(rta.allRules);
+			Set<Rule> queued = Sets.newHashSet(rta.allRules);
+			while (!queue.isEmpty()) {
+				if (aborted |= limiter.exceeded()) return;
+				Rule rule = queue.poll();
+				queued.remove(rule);
+				if (!infer(rule, generators)) continue;
+				for (Rule descendant : rta.ruleToDescRule.get(rule)) {
+					if (queued.add(descendant)) queue.add(descendant);
+				}
+			}
+		}
+
+		/**
+		 * A variable might take the values that the generators of every
+		 * positive atom it appears in might put at its position.
+		 * @return whether the domain of any variable grew
+		 */
+		boolean infer(Rule rule, Map<Atom, Collection<Rule>> generators) {
+			List<Set<Dob>> values = Lists.newArrayList();
+			for (int slot = 0; slot < rule.vars.size(); slot++) values.add(null);
+
+			for (Atom atom : rule.body) {
+				if (!atom.truth || rule.isGrounded(atom.dob)) continue;
+				List<Set<Dob>> candidates = Lists.newArrayList();
+				for (int slot = 0; slot < rule.vars.size(); slot++) candidates.add(Sets.<Dob>newHashSet());
+				for (Rule generator : generators.get(atom)) {
+					if (fits(atom.dob, generator.head.dob)) collect(rule, atom.dob, generator, generator.head.dob, candidates);
+				}
+
+				for (int slot = 0; slot < rule.vars.size(); slot++) {
+					if (!atom.dob.containsAny(ImmutableList.of(rule.vars.get(slot)))) continue;
+					if (values.get(slot) == null) values.set(slot, candidates.get(slot));
+					else values.get(slot).retainAll(candidates.get(slot));
+				}
+			}
+
+			boolean result = false;
+			List<Set<Dob>> domain = domains.get(rule);
+			for (int slot = 0; slot < rule.vars.size(); slot++) {
+				if (values.get(slot) != null) result |= domain.get(slot).addAll(values.get(slot));
+			}
+			return result;
+		}
+
+		/**
+		 * Walks the body node and the head node of a generator together and
+		 * collects what the head might put at the variables of the body.
+		 * A variable of the generator puts the parts of each of its values
+		 * that fit the body node.
+		 */
+		void collect(Rule rule, Dob body, Rule generator, Dob head, List<Set<Dob>> result) {
+			int slot = rule.vars.indexOf(body);
+			if (slot >= 0) {
+				result.get(slot).addAll(expand(generator, head));
+				return;
+			}
+			if (rule.isGrounded(body)) return;
+
+			int source = generator.vars.indexOf(head);
+			if (source >= 0) {
+				for (Dob value : domains.get(generator).get(source)) {
+					if (fits(body, value)) extract(rule, body, value, result);
+				}
+				return;
+			}
+
+			for (int i = 0; i < body.size(); i++) collect(rule, body.at(i), generator, head.at(i), result);
+		}
+
+		void extract(Rule rule, Dob body, Dob value, List<Set<Dob>> result) {
+			int slot = rule.vars.indexOf(body);
+			if (slot >= 0) result.get(slot).add(value);
+			else if (!rule.isGrounded(body)) {
+				for (int i = 0; i < body.size(); i++) extract(rule, body.at(i), value.at(i), result);
+			}
+		}
+
+		/**
+		 * @return whether the nodes might unify when repeated variables
+		 * are not checked
+		 */
+		boolean fits(Dob first, Dob second) {
+			if (first == second || pool.allVars.contains(first) || pool.allVars.contains(second)) return true;
+			if (first.isTerminal() || second.isTerminal() || first.size() != second.size()) return false;
+			for (int i = 0; i < first.size(); i++) if (!fits(first.at(i), second.at(i))) return false;
+			return true;
+		}
+
+		/**
+		 * @return every rendering of the node under the domains of the generator
+		 */
+		List<Dob> expand(Rule generator, Dob node) {
+			if (generator.isGrounded(node)) return ImmutableList.of(node);
+			int slot = generator.vars.indexOf(node);
+			if (slot >= 0) return ImmutableList.copyOf(domains.get(generator).get(slot));
+
+			List<Dob> result = Lists.newArrayList();
+			result.add(null);
+			for (int i = node.size() - 1; i >= 0; i--) {
+				List<Dob> children = expand(generator, node.at(i));
+				List<Dob> combined = Lists.newArrayList();
+				for (Dob child : children) {
+					for (Dob rest : result) combined.add(rest == null ? new Dob(child) : prepend(child, rest));
+				}
+				result = combined;
+			}
+
+			for (int i = 0; i < result.size(); i++) result.set(i, pool.dobs.submerge(result.get(i)));
+			return result;
+		}
+
+		boolean possible(Rule rule) {
+			for (Set<Dob> domain : domains.get(rule)) if (domain.isEmpty()) return false;
+			return true;
+		}
+
+		int add(Dob atom) {
+			Integer result = index.get(atom);
+			if (result != null) return result;
+
+			result = atoms.size();
+			atoms.add(atom);
+			index.put(atom, result);
+
+			String relation = relation(atom);
+			relations(relation).add(result);
+			List<Probe> registered = probes.get(relation);
+			if (registered == null) return result;
+			for (Probe probe : registered) {
+				Dob value = at(atom, Ints.asList(probe.path), 0);
+				if (value != null) probe.get(value).add(result);
+			}
+			return result;
+		}
+
+		List<Integer> relations(String relation) {
+			List<Integer> result = relations.get(relation);
+			if (result == null) relations.put(relation, result = Lists.newArrayList());
+			return result;
+		}
+
+		/**
+		 * @return a probe that indexes the atoms of the relation by their node
+		 * at the path. Probes have to exist before any atom is added.
+		 */
+		Probe probe(String relation, int[] path) {
+			List<Probe> registered = probes.get(relation);
+			if (registered == null) probes.put(relation, registered = Lists.newArrayList());
+			for (Probe probe : registered) if (Arrays.equals(probe.path, path)) return probe;
+			Probe result = new Probe(path);
+			registered.add(result);
+			return result;
+		}
+
+		/**
+		 * The instances of a rule. Each positive atom of the rule takes a
+		 * turn as the pivot that has to match a new atom. Atoms before the
+		 * pivot may match anything and atoms after it may only match old
+		 * atoms, so every combination is joined exactly once. After the
+		 * pivot, the atom to join next is the one with the fewest candidates,
+		 * counting both the atoms found through its lookups and the values
+		 * that the domains allow for its unbound variables.
+		 */
+		class Join {
+			final Rule rule;
+			final boolean emitted;
+			final Template head;
+			final List<Template> negated = Lists.newArrayList();
+			final List<Unification.Distinct> distincts;
+
+			final int[] atoms;
+			final String[] relations;
+			final Matcher[] matchers;
+			final Lookup[][] lookups;
+			final int[][] slots;
+			final int[] sizes;
+
+			final Unification unify;
+			final Dob[][] saved;
+			final boolean[] used;
+			final int[] matched;
+			int done = -1, now;
+
+			Join(Rule rule) {
+				this.rule = rule;
+				this.emitted = !bridges.contains(rule);
+				this.head = rule.getTemplate(rule.head);
+				this.distincts = rule.getDistincts();
+
+				List<Integer> atoms = Lists.newArrayList();
+				for (int i = 0; i < rule.body.size(); i++) {
+					Atom atom = rule.body.get(i);
+					if (atom.truth) atoms.add(i);
+					else negated.add(rule.getTemplate(atom));
+				}
+				this.atoms = Ints.toArray(atoms);
+
+				int size = this.atoms.length;
+				this.relations = new String[size];
+				this.matchers = new Matcher[size];
+				this.lookups = new Lookup[size][];
+				this.slots = new int[size][];
+				for (int i = 0; i < size; i++) {
+					Dob dob = rule.body.get(this.atoms[i]).dob;
+					relations[i] = relation(dob);
+					matchers[i] = rule.getMatchers().get(this.atoms[i]);
+
+					List<Lookup> found = Lists.newArrayList();
+					leaves(dob, relations[i], new int[0], found);
+					lookups[i] = found.toArray(new Lookup[found.size()]);
+
+					List<Integer> slots = Lists.newArrayList();
+					for (int slot = 0; slot < rule.vars.size(); slot++) {
+						if (matchers[i].getPath(slot) != null) slots.add(slot);
+					}
+					this.slots[i] = Ints.toArray(slots);
+				}
+
+				this.sizes = new int[rule.vars.size()];
+				for (int slot = 0; slot < sizes.length; slot++) sizes[slot] = domains.get(rule).get(slot).size();
+
+				this.unify = Unification.from(rule.vars);
+				this.saved = new Dob[size + 1][rule.vars.size()];
+				this.used = new boolean[size];
+				this.matched = new int[size];
+			}
+
+			/**
+			 * Adds a lookup for every leaf of the atom past the name of
+			 * its relation. Lookups through variables only work once the
+			 * variable is bound.
+			 */
+			void leaves(Dob node, String relation, int[] path, List<Lookup> result) {
+				if (!node.isTerminal()) {
+					for (int i = path.length == 0 ? 1 : 0; i < node.size(); i++) {
+						int[] child = Arrays.copyOf(path, path.length + 1);
+						child[path.length] = i;
+						leaves(node.at(i), relation, child, result);
+					}
+				} else if (path.length > 0) {
+					result.add(new Lookup(probe(relation, path), rule.vars.indexOf(node), node));
+				}
+			}
+
+			void evaluate() {
+				now = Builder.this.atoms.size();
+				if (atoms.length == 0) {
+					if (done < 0) emit();
+				} else {
+					for (int pivot = 0; pivot < atoms.length && !aborted; pivot++) {
+						List<Integer> candidates = relations(relations[pivot]);
+						if (candidates.isEmpty() || candidates.get(candidates.size() - 1) < done) continue;
+						unify.clear();
+						join(pivot, 0);
+					}
+				}
+				done = now;
+			}
+
+			void join(int pivot, int step) {
+				if (step == atoms.length) {
+					emit();
+					return;
+				}
+
+				int atom = pivot;
+				List<Integer> candidates = candidates(pivot);
+				if (step > 0) {
+					double best = Double.POSITIVE_INFINITY;
+					for (int i = 0; i < atoms.length; i++) {
+						if (used[i]) continue;
+						List<Integer> found = candidates(i);
+						double estimate = Math.min(found.size(), estimate(i));
+						if (estimate < best) {
+							best = estimate;
+							atom = i;
+							candidates = found;
+						}
+					}
+				}
+
+				int from = 0, limit = atom > pivot ? Math.max(done, 0) : now;
+				if (step == 0) {
+					from = Collections.binarySearch(candidates, Math.max(done, 0));
+					if (from < 0) from = ~from;
+				}
+
+				used[atom] = true;
+				Dob[] before = saved[step];
+				System.arraycopy(unify.assigned, 0, before, 0, before.length);
+				for (int i = from; i < candidates.size() && !aborted; i++) {
+					int candidate = candidates.get(i);
+					if (candidate >= limit) break;
+
+					System.arraycopy(before, 0, unify.assigned, 0, before.length);
+					if (!matchers[atom].extend(Builder.this.atoms.get(candidate), unify.assigned)) continue;
+					if (!unify.evaluateDistinct(distincts)) continue;
+					matched[atom] = candidate;
+					join(pivot, step + 1);
+				}
+				System.arraycopy(before, 0, unify.assigned, 0, before.length);
+				used[atom] = false;
+			}
+
+			/**
+			 * @return the shortest list of atoms that the lookups of the atom
+			 * can find with what is bound
+			 */
+			List<Integer> candidates(int atom) {
+				List<Integer> result = relations(relations[atom]);
+				for (Lookup lookup : lookups[atom]) {
+					Dob value = lookup.slot >= 0 ? unify.assigned[lookup.slot] : lookup.constant;
+					if (value == null) continue;
+					List<Integer> found = lookup.probe.values.get(value);
+					if (found == null) return ImmutableList.of();
+					if (found.size() < result.size()) result = found;
+				}
+				return result;
+			}
+
+			/**
+			 * @return the number of ways to bind the unbound variables of the
+			 * atom according to the domains
+			 */
+			double estimate(int atom) {
+				double result = 1;
+				for (int slot : slots[atom]) {
+					if (unify.assigned[slot] == null) result *= sizes[slot];
+				}
+				return result;
+			}
+
+			void emit() {
+				if (aborted |= limiter.exceeded()) return;
+				int head = add(this.head.render(unify.assigned, pool.dobs));
+				if (!emitted) return;
+
+				Dob[] rendered = new Dob[negated.size()];
+				for (int i = 0; i < rendered.length; i++) rendered[i] = negated.get(i).render(unify.assigned, pool.dobs);
+				heads.add(head);
+				positives.add(matched.clone());
+				negatives.add(rendered);
+			}
+		}
+	}
+
+	/**
+	 * The atoms of a relation indexed by their node at a path.
+	 */
+	private static class Probe {
+		final int[] path;
+		final Map<Dob, List<Integer>> values = Maps.newHashMap();
+		Probe(int[] path) { this.path = path; }
+
+		List<Integer> get(Dob value) {
+			List<Integer> result = values.get(value);
+			if (result == null) values.put(value, result = Lists.newArrayList());
+			return result;
+		}
+	}
+
+	/**
+	 * Looks an atom up through a probe by a constant or a bound slot.
+	 */
+	private static class Lookup {
+		final Probe probe;
+		final int slot;
+		final Dob constant;
+		Lookup(Probe probe, int slot, Dob constant) {
+			this.probe = probe;
+			this.slot = slot;
+			this.constant = constant;
+		}
+	}
+
+	/**
+	 * Relations are told apart by their name and arity.
+	 */
+	private static String relation(Dob atom) {
+		if (atom.isTerminal()) return atom.name;
+		return atom.at(0).name + "/" + atom.size();
+	}
+
+	/**
+	 * @return the node at the rest of the path or null if it is not there
+	 */
+	private static Dob at(Dob dob, List<Integer> path, int depth) {
+		for (; depth < path.size(); depth++) {
+			int position = path.get(depth);
+			if (position >= dob.size()) return null;
+			dob = dob.at(position);
+		}
+		return dob;
+	}
+
+	private static Dob prepend(Dob first, Dob rest) {
+		List<Dob> children = Lists.newArrayList(first);
+		children.addAll(rest.childCopy());
+		return new Dob(children);
+	}
+}
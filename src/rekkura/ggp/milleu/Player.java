@@ -168,6 +168,7 @@ public abstract class Player implements Runnable {
 			while (!isComplete() && validState()) waitForInput();
 			
 			while (!isComplete() && !validState()) {
+				reclaim();
 				this.state = this.machine.nextState(state, getMemory(turn));
 				turn++;
 			}
@@ -176,6 +177,13 @@ public abstract class Player implements Runnable {
 		protected synchronized boolean validState() { 
 			return this.turn == getHistoryExtent() && !this.isComplete(); 
 		}
+		
+		/**
+		 * This is called on the player thread before every advancement
+		 * of the state so that the machine can let go of whatever it
+		 * rendered during the last turn.
+		 */
+		protected void reclaim() { }
 	}
 	
 	public static abstract class ProverBased extends StateBased<BackwardStateMachine> {
@@ -191,6 +199,8 @@ public abstract class Player implements Runnable {
 		}
 		
 		protected abstract void plan();
+		
+		@Override protected void reclaim() { machine.reclaim(); }
 	}
 	
 	public static class Unresponsive extends ProverBased {
@@ -1,17 +1,26 @@
 package rekkura.logic.algorithm;
 
 import java.util.Collection;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
 import rekkura.logic.structure.Pool;
 import rekkura.logic.structure.Ruletta;
 import rekkura.util.Colut;
 
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 
 /**
@@ -134,4 +143,274 @@ public abstract class Optimizer {
 		}
 	};
 
+
+	/**
+	 * Applies the magic sets transformation to the rules for the given
+	 * query form with the given variables of the query bound. Only the
+	 * rules that the bound query needs survive, and each relation that
+	 * is reached with some of its arguments bound is copied under an
+	 * adorned name whose rules only fire for the bindings that were
+	 * asked for. Relations in {@code fixed} are used as they are and 
+	 * never adorned. This is the place for inputs like true and does.
+	 * A relation that is needed in full anyway, e.g. under a negation,
+	 * is not adorned either since the full version has every binding.
+	 * @param rules
+	 * @param query
+	 * @param bound the variables of the query that will be assigned
+	 * @param fixed the names of relations that should not be adorned
+	 * @param pool
+	 * @return
+	 */
+	public static Magic magic(Iterable<Rule> rules, Dob query, 
+			Collection<Dob> bound, Collection<Dob> fixed, Pool pool) {
+		List<Rule> submerged = pool.rules.submerge(rules);
+		Set<Dob> unadorned = Sets.newHashSet(pool.dobs.submerge(fixed));
+		while (true) {
+			Adorner adorner = new Adorner(submerged, unadorned, pool);
+			Magic result = adorner.apply(pool.dobs.submerge(query), bound);
+			if (!unadorned.addAll(adorner.getOverlap())) return result;
+		}
+	}
+
+	/**
+	 * This holds the rules generated for a single bound query. Asking 
+	 * the adorned query with the bound variables assigned returns the 
+	 * same dobs as asking the original query with the same assignment,
+	 * but under the adorned name, as long as the seed is also true.
+	 * If the query could not be adorned, the seed is null and the
+	 * adorned query is the original query.
+	 * @author ptpham
+	 *
+	 */
+	public static class Magic {
+		public final Dob query, adorned, seed;
+		public final ImmutableSet<Rule> rules;
+		private final ImmutableMap<Dob, Dob> names;
+
+		private Magic(Dob query, Dob adorned, Dob seed, 
+				Iterable<Rule> rules, Map<Dob, Dob> names) {
+			this.query = query;
+			this.adorned = adorned;
+			this.seed = seed;
+			this.rules = ImmutableSet.copyOf(rules);
+			this.names = ImmutableMap.copyOf(names);
+		}
+
+		public boolean isAdorned() { return this.seed != null; }
+
+		public Dob getSeed(Map<Dob, Dob> binding, Pool pool) {
+			if (this.seed == null) return null;
+			return pool.render(this.seed, binding);
+		}
+
+		public Dob getQuery(Map<Dob, Dob> binding, Pool pool) {
+			return pool.render(this.adorned, binding);
+		}
+
+		/**
+		 * @param dob
+		 * @param pool
+		 * @return the dob with any adorned names replaced by the 
+		 * names of the relations they were copied from
+		 */
+		public Dob restore(Dob dob, Pool pool) {
+			return pool.render(dob, this.names);
+		}
+	}
+
+	private static class Adorner {
+		private final Pool pool;
+		private final List<Rule> rules;
+		private final Set<Dob> fixed = Sets.newHashSet();
+		private final Multimap<Dob, Rule> keyToRule = ArrayListMultimap.create();
+		private final Map<Dob, Integer> arities = Maps.newHashMap();
+		private boolean generic;
+
+		private final Map<Dob, Dob> names = Maps.newHashMap();
+		private final Map<Dob, String> patterns = Maps.newHashMap();
+		private final Deque<Dob> pending = Queues.newArrayDeque();
+		private final Set<Dob> plain = Sets.newHashSet();
+		private final Set<Rule> result = Sets.newLinkedHashSet();
+
+		public Adorner(List<Rule> rules, Collection<Dob> fixed, Pool pool) {
+			this.pool = pool;
+			this.rules = rules;
+			this.fixed.addAll(fixed);
+
+			for (Rule rule : rules) {
+				Dob head = rule.head.dob;
+				Dob key = keyOf(head, rule.vars);
+				if (key == null) { generic = true; continue; }
+				keyToRule.put(key, rule);
+
+				Integer arity = arities.get(key);
+				if (arity != null && arity != head.size()) this.fixed.add(key);
+				arities.put(key, head.size());
+			}
+		}
+
+		public Magic apply(Dob query, Collection<Dob> bound) {
+			Set<Dob> vars = Rule.getVariablesOf(query, pool.allVars);
+			String pattern = patternOf(query, bound, vars);
+			if (!isAdornable(query, vars) || !pattern.contains("b")) {
+				addPlain(keyOf(query, vars));
+				return new Magic(query, query, null, result, names);
+			}
+
+			Dob name = query.at(0);
+			Dob adorned = rename(query, adorn(name, pattern));
+			Dob seed = magicOf(name, pattern, query);
+			while (!pending.isEmpty()) expand(pending.pop());
+			return new Magic(query, adorned, seed, result, names);
+		}
+
+		/**
+		 * @return the relations that were adorned but are also used in full
+		 */
+		public Set<Dob> getOverlap() {
+			return Sets.intersection(Sets.newHashSet(names.values()), plain);
+		}
+
+		/**
+		 * Generates the adorned copy of every rule of the relation and
+		 * the rules that pass bindings from the body of each rule on to 
+		 * the relations it uses. Bindings flow from left to right through 
+		 * the positive atoms of the body.
+		 */
+		private void expand(Dob adorned) {
+			Dob name = names.get(adorned);
+			String pattern = patterns.get(adorned);
+
+			for (Rule rule : keyToRule.get(name)) {
+				Dob head = rule.head.dob;
+				Set<Dob> known = Sets.newHashSet();
+				for (int i = 1; i < head.size(); i++) {
+					if (pattern.charAt(i - 1) == 'b') known.addAll(rule.getVariablesOf(head.at(i)));
+				}
+
+				Atom guard = new Atom(magicOf(name, pattern, head), true);
+				List<Atom> body = Lists.newArrayList(guard);
+				List<Atom> prefix = Lists.newArrayList(guard);
+				for (Atom atom : rule.body) {
+					Dob dob = atom.dob;
+					String inner = patternOf(dob, known, rule.vars);
+					if (atom.truth && isAdornable(dob, rule.vars) && inner.contains("b")) {
+						Atom magic = new Atom(magicOf(dob.at(0), inner, dob), true);
+						result.add(restrict(magic, prefix, rule));
+						dob = rename(dob, adorn(dob.at(0), inner));
+					} else addPlain(keyOf(dob, rule.vars));
+
+					Atom added = new Atom(dob, atom.truth);
+					body.add(added);
+					if (!atom.truth) continue;
+					prefix.add(added);
+					known.addAll(rule.getVariablesOf(dob));
+				}
+
+				Atom adornedHead = new Atom(rename(head, adorned), true);
+				result.add(pool.rules.submerge(new Rule(adornedHead, body, rule.vars, rule.distinct)));
+			}
+		}
+
+		/**
+		 * Builds a rule with the given head and body that only keeps 
+		 * the variables and distincts of the base rule that it uses.
+		 */
+		private Rule restrict(Atom head, List<Atom> body, Rule base) {
+			Set<Dob> used = Rule.getVariablesOf(Colut.prepend(head, body), base.vars);
+			List<Dob> vars = Lists.newArrayList(base.vars);
+			vars.retainAll(used);
+
+			List<Rule.Distinct> distinct = Lists.newArrayList();
+			for (Rule.Distinct pair : base.distinct) {
+				if (!used.containsAll(base.getVariablesOf(pair.first))) continue;
+				if (!used.containsAll(base.getVariablesOf(pair.second))) continue;
+				distinct.add(pair);
+			}
+			return pool.rules.submerge(new Rule(head, body, vars, distinct));
+		}
+
+		/**
+		 * Adds the original rules of the relation with the given key
+		 * and of every relation they depend on. A null key stands for
+		 * an atom that could be anything, so it pulls in every rule.
+		 */
+		private void addPlain(Dob key) {
+			if (key == null) {
+				result.addAll(rules);
+				return;
+			}
+
+			Deque<Dob> keys = Queues.newArrayDeque();
+			keys.push(key);
+			while (!keys.isEmpty()) {
+				Dob cur = keys.pop();
+				if (!plain.add(cur)) continue;
+				for (Rule rule : keyToRule.get(cur)) {
+					result.add(rule);
+					for (Atom atom : rule.body) {
+						Dob next = keyOf(atom.dob, rule.vars);
+						if (next == null) result.addAll(rules);
+						else keys.push(next);
+					}
+				}
+			}
+		}
+
+		private boolean isAdornable(Dob dob, Collection<Dob> vars) {
+			if (generic || dob.isTerminal()) return false;
+			Dob key = keyOf(dob, vars);
+			return key != null && !fixed.contains(key) && keyToRule.containsKey(key);
+		}
+
+		private Dob adorn(Dob name, String pattern) {
+			Dob adorned = pool.dobs.submerge(new Dob("[" + name.name + "|" + pattern + "]"));
+			if (names.put(adorned, name) == null) {
+				patterns.put(adorned, pattern);
+				pending.push(adorned);
+			}
+			return adorned;
+		}
+
+		/**
+		 * @return the dob that holds the bound arguments of the given dob
+		 * under the magic name of the relation and pattern
+		 */
+		private Dob magicOf(Dob name, String pattern, Dob dob) {
+			List<Dob> children = Lists.newArrayList(pool.dobs.submerge(
+				new Dob("[MAGIC|" + name.name + "|" + pattern + "]")));
+			for (int i = 1; i < dob.size(); i++) {
+				if (pattern.charAt(i - 1) == 'b') children.add(dob.at(i));
+			}
+			return pool.dobs.submerge(new Dob(children));
+		}
+
+		private Dob rename(Dob dob, Dob name) {
+			List<Dob> children = dob.childCopy();
+			children.set(0, name);
+			return pool.dobs.submerge(new Dob(children));
+		}
+
+		/**
+		 * An argument is bound if all of its variables are bound.
+		 */
+		private static String patternOf(Dob dob, Collection<Dob> bound, Collection<Dob> vars) {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 1; i < dob.size(); i++) {
+				Set<Dob> args = Rule.getVariablesOf(dob.at(i), vars);
+				builder.append(bound.containsAll(args) ? 'b' : 'f');
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * @return the dob that names the relation of the given dob or 
+		 * null if the relation could be anything
+		 */
+		private static Dob keyOf(Dob dob, Collection<Dob> vars) {
+			Dob key = dob.isTerminal() ? dob : dob.at(0);
+			if (!key.isTerminal() || vars.contains(key)) return null;
+			return key;
+		}
+	}
 }
@@ -2,18 +2,28 @@
 package rekkura.logic.algorithm;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import rekkura.logic.model.Atom;
 import rekkura.logic.model.Dob;
+import rekkura.logic.model.Matcher;
 import rekkura.logic.model.Rule;
+import rekkura.logic.model.Template;
 import rekkura.logic.model.Unification;
+import rekkura.logic.structure.Cachet;
 import rekkura.logic.structure.Pool;
 import rekkura.util.Cartesian;
 import rekkura.util.Colut;
 import rekkura.util.Limiter;
 import rekkura.util.OtmUtil;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
 
 /**
  * A renderer is responsible for generating all possible implicated dobs
@@ -33,15 +43,192 @@ public abstract class Renderer {
 	 * @param truths
 	 * @return
 	 */
-	public abstract List<Map<Dob,Dob>> apply(Rule rule, Set<Dob> truths, Multimap<Atom,Dob> support, Pool pool);
+	public abstract List<Unification> render(Rule rule, Set<Dob> truths, Multimap<Atom,Dob> support, Pool pool);
 
+	/**
+	 * This is {@code render} with the unifications converted to maps. Use
+	 * {@code Terra.renderUnifiedHeads} on the result of {@code render} to 
+	 * instantiate heads without going through the maps.
+	 * @param rule
+	 * @param truths
+	 * @param support
+	 * @param pool
+	 * @return
+	 */
+	public List<Map<Dob,Dob>> apply(Rule rule, Set<Dob> truths, Multimap<Atom,Dob> support, Pool pool) {
+		List<Map<Dob,Dob>> result = Lists.newArrayList();
+		for (Unification unify : render(rule, truths, support, pool)) result.add(unify.toMap());
+		return result;
+	}
+
+	public static final int FAILOVER_OPS = 1024;
 	public final Limiter.Operations ops = Limiter.forOperations();
 	public static Standard newStandard() { return new Standard(); }
 	public static Chaining newChaining() { return new Chaining(); }
+	public static HashJoin newHashJoin() { return new HashJoin(); }
+	public static Leapfrog newLeapfrog() { return new Leapfrog(); }
+	public static Indexed newIndexed(Cachet cachet) { return new Indexed(cachet); }
 	public static Failover newStandardFailover() {
 		Standard standard = newStandard();
-		standard.ops.max = 1024;
-		return new Failover(standard, newChaining());
+		standard.ops.max = FAILOVER_OPS;
+		return new Failover(standard, newHashJoin());
+	}
+	
+	public static Failover newIndexedFailover(Cachet cachet) {
+		Indexed indexed = newIndexed(cachet);
+		indexed.ops.max = FAILOVER_OPS;
+		return new Failover(indexed, newHashJoin());
+	}
+	
+	/**
+	 * Renderers that walk a Cartesian space of unifications split spaces
+	 * with at least PARALLEL_SPACE assignments into PARTS_PER_WORKER ranges
+	 * of the first dimension per worker.
+	 */
+	public static final int PARALLEL_SPACE = 1 << 14, PARTS_PER_WORKER = 4;
+	protected ForkJoinPool workers;
+	
+	/**
+	 * Lets this renderer split a single large render across the given
+	 * workers. Only the standard and chaining renderers split and only 
+	 * when the pool is concurrent. Failover and adaptive renderers pass
+	 * the workers on to their children. The output does not change. 
+	 * Passing null renders everything on the calling thread again.
+	 * @param workers
+	 * @return this renderer
+	 */
+	public Renderer useWorkers(ForkJoinPool workers) {
+		this.workers = workers;
+		return this;
+	}
+	
+	/**
+	 * Renders the assignments of a space whose first dimension is 
+	 * narrowed to the given range. Each part gets its own limiter.
+	 */
+	protected static interface Part {
+		List<Unification> render(List<Unification> range, Limiter.Operations ops);
+	}
+	
+	/**
+	 * Splits the first dimension of the space into disjoint ranges and renders
+	 * them on the workers if the space is large enough to be worth it. The first
+	 * dimension is the outermost one, so concatenating the ranges in order gives
+	 * the same result as rendering the whole space. The operations of the parts
+	 * add up to the operations of this renderer.
+	 * @param space
+	 * @param part
+	 * @param pool
+	 * @return
+	 */
+	protected List<Unification> renderParts(List<List<Unification>> space, final Part part, Pool pool) {
+		List<Unification> first = Colut.first(space);
+		int parts = this.workers == null ? 1 : Math.min(first.size(), PARTS_PER_WORKER * workers.getParallelism());
+		if (parts < 2 || !pool.concurrent || Cartesian.size(space) < PARALLEL_SPACE) return part.render(first, this.ops);
+		
+		List<Limiter.Operations> limits = Lists.newArrayList();
+		List<Callable<List<Unification>>> tasks = Lists.newArrayList();
+		for (int i = 0; i < parts; i++) {
+			final List<Unification> range = first.subList(i * first.size() / parts, (i + 1) * first.size() / parts);
+			final Limiter.Operations limit = Limiter.forOperations(this.ops.max);
+			limits.add(limit);
+			tasks.add(new Callable<List<Unification>>() {
+				@Override public List<Unification> call() { return part.render(range, limit); }
+			});
+		}
+		
+		List<Unification> result = Lists.newArrayList();
+		try {
+			for (Future<List<Unification>> future : this.workers.invokeAll(tasks)) result.addAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Throwables.propagate(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+		
+		for (Limiter.Operations limit : limits) {
+			this.ops.cur += limit.cur;
+			this.ops.failed |= limit.failed;
+		}
+		this.ops.failed |= this.ops.cur > this.ops.max;
+		return result;
+	}
+	
+	public static final int BUCKET_BITS = 2;
+	
+	/**
+	 * A plan is what a renderer works out about a rule from the sizes
+	 * of its support before it looks at any grounds: the atoms to expand
+	 * in order, the atoms to check against the truths afterwards and the
+	 * distincts. The order is null if the rule can not be expanded.
+	 */
+	public static class Plan {
+		public final List<Atom> order, check;
+		public final List<Unification.Distinct> distincts;
+		
+		public Plan(Rule rule, List<Atom> order) {
+			this.order = order;
+			this.check = Colut.remove(rule.body, order);
+			this.distincts = rule.getDistincts();
+		}
+	}
+	
+	/**
+	 * This caches plans by rule and by the bucket of the sizes of 
+	 * the support for the rule. A rule is only planned again once the
+	 * support for some atom in its body has grown or shrunk by about 
+	 * a factor of 2^BUCKET_BITS since the last plan in that bucket.
+	 * @author ptpham
+	 *
+	 * @param <P>
+	 */
+	public static abstract class Planner<P> {
+		private final com.google.common.collect.Table<Rule, List<Integer>, P> plans = HashBasedTable.create();
+		
+		protected abstract P plan(Rule rule, Multimap<Atom, Dob> support);
+		
+		protected List<Integer> getBucket(Rule rule, Multimap<Atom, Dob> support) {
+			return Renderer.getBucket(rule, support);
+		}
+		
+		public P get(Rule rule, Multimap<Atom, Dob> support) {
+			List<Integer> bucket = getBucket(rule, support);
+			P result = plans.get(rule, bucket);
+			if (result == null) {
+				result = plan(rule, support);
+				plans.put(rule, bucket, result);
+			}
+			return result;
+		}
+		
+		/**
+		 * @return the number of plans that have been made
+		 */
+		public int size() { return plans.size(); }
+	}
+	
+	/**
+	 * @param size
+	 * @return the number of BUCKET_BITS bit digits in the size
+	 */
+	public static int getBucket(int size) {
+		int bits = Integer.SIZE - Integer.numberOfLeadingZeros(size);
+		return (bits + BUCKET_BITS - 1) / BUCKET_BITS;
+	}
+	
+	public static List<Integer> getBucket(Rule rule, Multimap<Atom, Dob> support) {
+		int[] result = new int[rule.body.size()];
+		for (int i = 0; i < result.length; i++) result[i] = getBucket(support.get(rule.body.get(i)).size());
+		return Ints.asList(result);
+	}
+	
+	public static Adaptive newAdaptive(Renderer... children) { return new Adaptive(children); }
+	public static Adaptive newIndexedAdaptive(Cachet cachet) {
+		Standard standard = newStandard();
+		Indexed indexed = newIndexed(cachet);
+		standard.ops.max = indexed.ops.max = FAILOVER_OPS;
+		return new Adaptive(standard, indexed, newChaining(), newLeapfrog(), newHashJoin());
 	}
 
 	/**
@@ -52,17 +239,32 @@ public abstract class Renderer {
 	 *
 	 */
 	public static class Standard extends Renderer {
-		@Override public List<Map<Dob,Dob>> apply(Rule rule,
-				Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
-			Map<Atom,Integer> sizes = OtmUtil.getNumValues(support);
+		public final Planner<Plan> plans = new Planner<Plan>() {
+			@Override protected Plan plan(Rule rule, Multimap<Atom, Dob> support) {
+				return new Plan(rule, Terra.getGreedyVarCover(rule, OtmUtil.getNumValues(support)));
+			}
+		};
+		
+		@Override public List<Unification> render(final Rule rule,
+				final Set<Dob> truths, Multimap<Atom, Dob> support, final Pool pool) {
 			ops.begin();
 
-			List<Atom> expanders = Terra.getGreedyVarCover(rule, sizes);
-			List<Atom> check = Colut.remove(rule.body, expanders);
-			Cartesian.AdvancingIterator<Unification> iterator =
-					Terra.getUnificationIterator(rule, expanders, support, truths);
-
-			return applyIterative(rule, check, iterator, pool, truths, this.ops);
+			final Plan plan = plans.get(rule, support);
+			if (this.workers == null || rule.vars.size() == 0 || plan.order == null) {
+				Cartesian.AdvancingIterator<Unification> iterator =
+						Terra.getUnificationIterator(rule, plan.order, support, truths);
+				return applyIterative(rule, plan.check, iterator, pool, truths, this.ops);
+			}
+			
+			final List<List<Unification>> space = Terra.getUnificationSpace(rule, support, plan.order);
+			if (Cartesian.size(space) == 0) return Lists.newArrayList();
+			return renderParts(space, new Part() {
+				@Override public List<Unification> render(List<Unification> range, Limiter.Operations ops) {
+					List<List<Unification>> narrowed = Lists.newArrayList(space);
+					narrowed.set(0, range);
+					return applyIterative(rule, plan.check, Cartesian.asIterator(narrowed), pool, truths, ops);
+				}
+			}, pool);
 		}
 	}
 
@@ -80,27 +282,640 @@ public abstract class Renderer {
 	 *
 	 */
 	public static class Chaining extends Renderer {
+		/**
+		 * The chaining cover does not depend on the 
+		 * support, so every rule has one plan.
+		 */
+		public final Planner<Plan> plans = new Planner<Plan>() {
+			@Override protected Plan plan(Rule rule, Multimap<Atom, Dob> support) {
+				return new Plan(rule, Terra.getChainingCover(Atom.filterPositives(rule.body), rule.vars));
+			}
+			
+			@Override protected List<Integer> getBucket(Rule rule, Multimap<Atom, Dob> support) {
+				return ImmutableList.of();
+			}
+		};
+		
 		@Override
-		public List<Map<Dob, Dob>> apply(Rule rule,
-				Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+		public List<Unification> render(final Rule rule,
+				final Set<Dob> truths, Multimap<Atom, Dob> support, final Pool pool) {
 
 			ops.begin();
-			List<Map<Dob,Dob>> result = Lists.newArrayList();
-			if (Terra.applyVarless(rule, truths, result)) return result;
-			List<Atom> expanders = Terra.getChainingCover(Atom.filterPositives(rule.body), rule.vars);
-			if (expanders == null) return result;
+			List<Unification> result = Lists.newArrayList();
+			if (Terra.applyVarlessUnifications(rule, truths, result)) return result;
+			final Plan plan = plans.get(rule, support);
+			if (plan.order == null) return result;
 
 			// We can only check the size of the space after constructing the unifications
 			// because we may have filtered out some grounds that don't actually unify.
-			List<Atom> check = Colut.remove(rule.body, expanders);
-			List<List<Unification>> space = Terra.getUnificationSpace(rule, support, expanders);
+			List<List<Unification>> space = Terra.getUnificationSpace(rule, support, plan.order);
 			if (Cartesian.size(space) == 0) return result;
 
-			List<ListMultimap<Unification,Unification>> guide = Unification.getChainingGuide(space, rule.vars);
-			return applyChaining(rule, check, guide, truths, pool, ops);
+			final List<ListMultimap<Unification,Unification>> guide = Unification.getChainingGuide(space, rule.vars);
+			if (this.workers == null) return applyChaining(rule, plan.check, guide, truths, pool, ops);
+			
+			// The first index has a single key that holds the whole first dimension
+			final Unification key = Colut.any(Colut.first(guide).keySet());
+			return renderParts(space, new Part() {
+				@Override public List<Unification> render(List<Unification> range, Limiter.Operations ops) {
+					List<ListMultimap<Unification,Unification>> narrowed = Lists.newArrayList(guide);
+					ListMultimap<Unification,Unification> first = ArrayListMultimap.create();
+					first.putAll(key, range);
+					narrowed.set(0, first);
+					return applyChaining(rule, plan.check, narrowed, truths, pool, ops);
+				}
+			}, pool);
+		}
+
+
+	}
+
+	/**
+	 * This renderer is a pipelined hash join over the positive atoms
+	 * of the body in the order given by {@link Terra#getJoinOrder}. Each
+	 * atom after the first gets a hash table from the variables that it 
+	 * shares with the atoms before it to its unifications. The table is 
+	 * built from the support the first time it is probed and every 
+	 * partial assignment is then extended by probing. Negative atoms are 
+	 * checked once all of the positive atoms have been joined.
+	 * @author ptpham
+	 *
+	 */
+	public static class HashJoin extends Renderer {
+		public final Planner<Plan> plans = new Planner<Plan>() {
+			@Override protected Plan plan(Rule rule, Multimap<Atom, Dob> support) {
+				return new Plan(rule, Terra.getJoinOrder(rule, OtmUtil.getNumValues(support)));
+			}
+		};
+		
+		@Override
+		public List<Unification> render(Rule rule,
+				Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+			ops.begin();
+			List<Unification> result = Lists.newArrayList();
+			if (Terra.applyVarlessUnifications(rule, truths, result)) return result;
+
+			Plan plan = plans.get(rule, support);
+			List<Table> tables = Lists.newArrayList();
+			boolean[] bound = new boolean[rule.vars.size()];
+			for (Atom atom : plan.order) tables.add(new Table(rule, atom, bound));
+			
+			Probe probe = new Probe(rule, tables, plan, truths, support, pool);
+			probe.run(0, result);
+			return result;
+		}
+		
+		/**
+		 * The unifications of one atom keyed by the slots
+		 * it shares with the atoms that come before it.
+		 */
+		private class Table {
+			public final Atom atom;
+			public final int[] keys;
+			public final Unification probe;
+			private ListMultimap<Unification, Unification> rows;
+			
+			public Table(Rule rule, Atom atom, boolean[] bound) {
+				this.atom = atom;
+				this.probe = Unification.from(rule.vars);
+				
+				Matcher matcher = rule.getMatcher(atom);
+				List<Integer> keys = Lists.newArrayList();
+				for (int i = 0; i < bound.length; i++) {
+					if (matcher.getPath(i) == null) continue;
+					if (bound[i]) keys.add(i);
+					bound[i] = true;
+				}
+				this.keys = Ints.toArray(keys);
+			}
+			
+			public List<Unification> get(Unification partial, Rule rule, Multimap<Atom, Dob> support) {
+				if (rows == null) build(rule, support);
+				for (int key : keys) probe.assigned[key] = partial.assigned[key];
+				return rows.get(probe);
+			}
+			
+			private void build(Rule rule, Multimap<Atom, Dob> support) {
+				this.rows = ArrayListMultimap.create();
+				Matcher matcher = rule.getMatcher(atom);
+				for (Dob ground : support.get(atom)) {
+					if (ops.exceeded()) return;
+					Unification row = Unification.from(rule.vars);
+					if (!matcher.match(ground, row)) continue;
+					
+					Unification key = Unification.from(rule.vars);
+					for (int i : keys) key.assigned[i] = row.assigned[i];
+					rows.put(key, row);
+				}
+			}
+		}
+		
+		private class Probe {
+			public final Rule rule;
+			public final List<Table> tables;
+			public final List<Atom> check;
+			public final Set<Dob> truths;
+			public final Multimap<Atom, Dob> support;
+			public final Pool pool;
+			public final List<Unification.Distinct> distincts;
+			public final Unification[] frames;
+			
+			public Probe(Rule rule, List<Table> tables, Plan plan,
+					Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+				this.rule = rule;
+				this.tables = tables;
+				this.check = plan.check;
+				this.truths = truths;
+				this.support = support;
+				this.pool = pool;
+				this.distincts = plan.distincts;
+				this.frames = new Unification[tables.size() + 1];
+				for (int i = 0; i < frames.length; i++) frames[i] = Unification.from(rule.vars);
+			}
+			
+			public void run(int depth, List<Unification> result) {
+				Unification current = frames[depth];
+				if (depth == tables.size()) {
+					if (!current.isValid()) return;
+					if (!Terra.checkAtoms(rule, current, check, truths, pool)) return;
+					result.add(current.copy());
+					return;
+				}
+				
+				Unification next = frames[depth + 1];
+				for (Unification row : tables.get(depth).get(current, rule, support)) {
+					if (ops.exceeded()) return;
+					System.arraycopy(current.assigned, 0, next.assigned, 0, next.assigned.length);
+					Colut.transferNonNull(next.assigned, row.assigned);
+					if (!next.evaluateDistinct(distincts)) continue;
+					run(depth + 1, result);
+				}
+			}
+		}
+	}
+
+	/**
+	 * This renderer is a leapfrog triejoin. The positive atoms are turned 
+	 * into tries by sorting the ids of their variable assignments in a 
+	 * global variable order. Variables are then assigned one at a time by 
+	 * leapfrogging over the tries of the atoms that contain them, so only
+	 * values that every one of those atoms agrees on are ever visited.
+	 * This keeps rules with cyclic variable sharing from blowing up in
+	 * intermediate results the way pairwise joins do.
+	 * @author ptpham
+	 *
+	 */
+	public static class Leapfrog extends Renderer {
+		public final Planner<Layout> plans = new Planner<Layout>() {
+			@Override protected Layout plan(Rule rule, Multimap<Atom, Dob> support) {
+				return new Layout(rule, Terra.getJoinOrder(rule, OtmUtil.getNumValues(support)));
+			}
+		};
+		
+		@Override
+		public List<Unification> render(Rule rule,
+				Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+			ops.begin();
+			List<Unification> result = Lists.newArrayList();
+			if (Terra.applyVarlessUnifications(rule, truths, result)) return result;
+			
+			Layout plan = plans.get(rule, support);
+			List<Trie> tries = Lists.newArrayList();
+			for (int i = 0; i < plan.positives.size(); i++) {
+				Trie trie = new Trie(rule, plan.positives.get(i), plan.slots.get(i), support, pool);
+				if (trie.rows.length == 0) return result;
+				tries.add(trie);
+			}
+			
+			Frog frog = new Frog(rule, plan, tries, truths, pool);
+			frog.run(0, result);
+			return result;
 		}
+		
+		/**
+		 * Variables are ordered by where they first show up in the join
+		 * order. The remaining atoms are checked as soon as all of their
+		 * variables have been assigned.
+		 */
+		public static class Layout {
+			public final int[] order;
+			public final List<Atom> positives = Lists.newArrayList();
+			public final List<int[]> slots = Lists.newArrayList();
+			public final List<List<Atom>> checks = Lists.newArrayList();
+			
+			public Layout(Rule rule, List<Atom> join) {
+				List<Integer> order = Lists.newArrayList();
+				for (Atom atom : join) {
+					int[] slots = getSlots(rule, atom, null);
+					if (slots.length == 0) continue;
+					for (int slot : slots) if (!order.contains(slot)) order.add(slot);
+					this.positives.add(atom);
+				}
+				this.order = Ints.toArray(order);
+				for (Atom atom : positives) this.slots.add(getSlots(rule, atom, order));
+				
+				for (int i = 0; i <= order.size(); i++) checks.add(Lists.<Atom>newArrayList());
+				for (Atom atom : Colut.remove(rule.body, positives)) {
+					int depth = 0;
+					for (int slot : getSlots(rule, atom, null)) {
+						int pos = order.indexOf(slot);
+						if (pos < 0) { depth = order.size(); break; }
+						depth = Math.max(depth, pos + 1);
+					}
+					checks.get(depth).add(atom);
+				}
+			}
+			
+			/**
+			 * @return the slots of the variables that show up in the atom
+			 * in the given order or in slot order if the order is null
+			 */
+			private static int[] getSlots(Rule rule, Atom atom, List<Integer> order) {
+				Matcher matcher = rule.getMatcher(atom);
+				List<Integer> result = Lists.newArrayList();
+				int size = order == null ? rule.vars.size() : order.size();
+				for (int i = 0; i < size; i++) {
+					int slot = order == null ? i : order.get(i);
+					if (matcher.getPath(slot) != null) result.add(slot);
+				}
+				return Ints.toArray(result);
+			}
+		}
+		
+		/**
+		 * The assignments of an atom as rows of dob ids sorted in the
+		 * order of the variables of the atom. The current range of a trie
+		 * holds the rows that agree with the variables assigned so far.
+		 * Grounds that leave some variable of the atom unassigned are 
+		 * dropped.
+		 */
+		private static class Trie {
+			public final int[] slots;
+			public final int[][] rows;
+			public int depth, lo, hi;
+			private final int[] los, his;
+			
+			public Trie(Rule rule, Atom atom, int[] slots, 
+					Multimap<Atom, Dob> support, Pool pool) {
+				Matcher matcher = rule.getMatcher(atom);
+				this.slots = slots;
+				
+				List<int[]> rows = Lists.newArrayList();
+				Dob[] assigned = new Dob[rule.vars.size()];
+				for (Dob ground : support.get(atom)) {
+					if (!matcher.match(ground, assigned)) continue;
+					int[] row = new int[slots.length];
+					for (int i = 0; i < row.length; i++) row[i] = pool.dobs.id(assigned[slots[i]]);
+					if (!Ints.contains(row, -1)) rows.add(row);
+				}
+				
+				this.rows = rows.toArray(new int[rows.size()][]);
+				Arrays.sort(this.rows, Trie.LEXICOGRAPHIC);
+				this.los = new int[slots.length + 1];
+				this.his = new int[slots.length + 1];
+				this.hi = this.rows.length;
+			}
+			
+			public int key(int pos) { return rows[pos][depth]; }
+			
+			/**
+			 * This gallops forward from the given position before 
+			 * searching, so short moves stay cheap.
+			 * @return the first position in the current range at or 
+			 * after the given one whose key is at least the target
+			 */
+			public int seek(int pos, int target) {
+				if (pos >= hi || key(pos) >= target) return pos;
+				int left = pos + 1, step = 1;
+				while (left < hi && key(left) < target) {
+					pos = left;
+					left += step;
+					step <<= 1;
+				}
+				
+				int right = Math.min(left, hi);
+				left = pos + 1;
+				while (left < right) {
+					int mid = (left + right) >>> 1;
+					if (key(mid) < target) left = mid + 1;
+					else right = mid;
+				}
+				return left;
+			}
+			
+			/**
+			 * Narrows the range to the rows with the given key, 
+			 * which must be at the given position.
+			 */
+			public void open(int pos) {
+				los[depth] = lo;
+				his[depth] = hi;
+				int end = seek(pos, key(pos) + 1);
+				this.lo = pos;
+				this.hi = end;
+				depth++;
+			}
+			
+			public void close() {
+				depth--;
+				this.lo = los[depth];
+				this.hi = his[depth];
+			}
+			
+			private static final Comparator<int[]> LEXICOGRAPHIC = new Comparator<int[]>() {
+				@Override public int compare(int[] first, int[] second) {
+					for (int i = 0; i < first.length; i++) {
+						if (first[i] != second[i]) return first[i] < second[i] ? -1 : 1;
+					}
+					return 0;
+				}
+			};
+		}
+		
+		private class Frog {
+			public final Rule rule;
+			public final Layout plan;
+			public final Trie[][] participants;
+			public final Set<Dob> truths;
+			public final Pool pool;
+			public final List<Unification.Distinct> distincts;
+			public final Unification unify;
+			
+			public Frog(Rule rule, Layout plan, List<Trie> tries, Set<Dob> truths, Pool pool) {
+				this.rule = rule;
+				this.plan = plan;
+				this.truths = truths;
+				this.pool = pool;
+				this.distincts = rule.getDistincts();
+				this.unify = Unification.from(rule.vars);
+				
+				this.participants = new Trie[plan.order.length][];
+				for (int i = 0; i < plan.order.length; i++) {
+					List<Trie> current = Lists.newArrayList();
+					for (Trie trie : tries) if (Ints.contains(trie.slots, plan.order[i])) current.add(trie);
+					participants[i] = current.toArray(new Trie[current.size()]);
+				}
+			}
+			
+			public void run(int depth, List<Unification> result) {
+				if (!Terra.checkAtoms(rule, unify, plan.checks.get(depth), truths, pool)) return;
+				if (depth == plan.order.length) {
+					if (unify.isValid()) result.add(unify.copy());
+					return;
+				}
+				
+				Trie[] tries = participants[depth];
+				int[] pos = new int[tries.length];
+				for (int i = 0; i < pos.length; i++) pos[i] = tries[i].lo;
+				
+				int slot = plan.order[depth];
+				while (!ops.exceeded()) {
+					// Leapfrog every trie up to the largest key
+					int max = Integer.MIN_VALUE;
+					for (int i = 0; i < pos.length; i++) max = Math.max(max, tries[i].key(pos[i]));
+					
+					boolean agreed = true;
+					for (int i = 0; i < pos.length; i++) {
+						pos[i] = tries[i].seek(pos[i], max);
+						if (pos[i] == tries[i].hi) return;
+						agreed &= tries[i].key(pos[i]) == max;
+					}
+					if (!agreed) continue;
+					
+					unify.assigned[slot] = pool.dobs.fromId(max);
+					if (unify.evaluateDistinct(distincts)) {
+						for (int i = 0; i < pos.length; i++) tries[i].open(pos[i]);
+						run(depth + 1, result);
+						for (int i = 0; i < pos.length; i++) tries[i].close();
+					}
+					unify.assigned[slot] = null;
+					
+					// Move past the key that was just assigned
+					for (int i = 0; i < pos.length; i++) {
+						pos[i] = tries[i].seek(pos[i], max + 1);
+						if (pos[i] == tries[i].hi) return;
+					}
+				}
+			}
+		}
+	}
 
+	/**
+	 * This renderer joins the body one atom at a time. Once some variable
+	 * of an atom has been assigned by an earlier atom, the grounds for the
+	 * atom are looked up in the argument indexes of the cachet instead of
+	 * being taken from the support, so grounds that disagree with the 
+	 * partial assignment are never matched. The cachet is only used for
+	 * atoms whose support is everything that the cachet has for them.
+	 * @author ptpham
+	 *
+	 */
+	public static class Indexed extends Renderer {
+		public final Cachet cachet;
+		private final Map<Rule, List<Shape>> shapes = Maps.newHashMap();
+		
+		/**
+		 * Whether the support for an atom is complete changes the plan, 
+		 * so it is part of the bucket along with the sizes.
+		 */
+		private final Planner<List<Step>> plans = new Planner<List<Step>>() {
+			@Override protected List<Step> plan(Rule rule, Multimap<Atom, Dob> support) {
+				return Indexed.this.plan(rule, support);
+			}
+			
+			@Override protected List<Integer> getBucket(Rule rule, Multimap<Atom, Dob> support) {
+				List<Shape> shapes = getShapes(rule);
+				int[] result = new int[shapes.size()];
+				for (int i = 0; i < result.length; i++) {
+					Shape shape = shapes.get(i);
+					int size = support.get(shape.atom).size();
+					boolean complete = shape.atom.truth && size == shape.countGrounds();
+					result[i] = 2 * Renderer.getBucket(size) + (complete ? 1 : 0);
+				}
+				return Ints.asList(result);
+			}
+		};
+		
+		private Indexed(Cachet cachet) { this.cachet = cachet; }
+		
+		@Override
+		public List<Unification> render(Rule rule,
+				Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+			ops.begin();
+			List<Unification> result = Lists.newArrayList();
+			if (Terra.applyVarlessUnifications(rule, truths, result)) return result;
+			
+			Join join = new Join(rule, plans.get(rule, support), truths, support, pool);
+			join.run(0, result);
+			return result;
+		}
+		
+		/**
+		 * Atoms that can be looked up by an assigned variable go first and
+		 * smaller supports break ties. Atoms whose variables are all assigned
+		 * are checked against the truths, as are the negative atoms at the end.
+		 */
+		private List<Step> plan(Rule rule, Multimap<Atom, Dob> support) {
+			List<Step> result = Lists.newArrayList();
+			List<Step> remaining = Lists.newArrayList();
+			List<Step> negatives = Lists.newArrayList();
+			for (Shape shape : getShapes(rule)) {
+				int size = support.get(shape.atom).size();
+				if (!shape.atom.truth) negatives.add(new Step(shape, size, true));
+				else remaining.add(new Step(shape, size, size == shape.countGrounds()));
+			}
+			
+			boolean[] assigned = new boolean[rule.vars.size()];
+			while (remaining.size() > 0) {
+				Step best = null;
+				for (Step step : remaining) {
+					step.update(assigned);
+					if (best == null || step.compareTo(best) < 0) best = step;
+				}
+				
+				remaining.remove(best);
+				result.add(best);
+				for (int slot : best.shape.slots) assigned[slot] = true;
+			}
+			
+			for (Step step : negatives) step.check = true;
+			result.addAll(negatives);
+			return result;
+		}
+		
+		private List<Shape> getShapes(Rule rule) {
+			List<Shape> result = shapes.get(rule);
+			if (result == null) {
+				result = Lists.newArrayList();
+				for (Atom atom : rule.body) result.add(new Shape(rule, atom));
+				shapes.put(rule, result);
+			}
+			return result;
+		}
+		
+		/**
+		 * This holds everything about a body atom that does 
+		 * not change between calls.
+		 */
+		private class Shape {
+			public final Atom atom;
+			public final Matcher matcher;
+			public final Template template;
+			public final int[] slots;
+			
+			private final List<Dob> forms;
+			private final Map<Integer, List<Multimap<Dob, Dob>>> indexes = Maps.newHashMap();
+			
+			public Shape(Rule rule, Atom atom) {
+				this.atom = atom;
+				this.matcher = rule.getMatcher(atom);
+				this.template = rule.getTemplate(atom);
+				this.forms = cachet.spines.get(atom.dob);
+				
+				List<Integer> slots = Lists.newArrayList();
+				for (int i = 0; i < rule.vars.size(); i++) {
+					if (matcher.getPath(i) != null) slots.add(i);
+				}
+				this.slots = Ints.toArray(slots);
+			}
+			
+			public int countGrounds() {
+				int result = 0;
+				for (Dob form : forms) result += cachet.formToGrounds.get(form).size();
+				return result;
+			}
+			
+			public List<Multimap<Dob, Dob>> getIndexes(int slot) {
+				List<Multimap<Dob, Dob>> result = indexes.get(slot);
+				if (result == null) {
+					result = cachet.getArgumentIndexes(atom.dob, matcher.getPath(slot));
+					indexes.put(slot, result);
+				}
+				return result;
+			}
+		}
+		
+		private static class Step implements Comparable<Step> {
+			public final Shape shape;
+			public final int size;
+			public final boolean complete;
+			public int slot = -1;
+			public boolean check;
+			
+			public Step(Shape shape, int size, boolean complete) {
+				this.shape = shape;
+				this.size = size;
+				this.complete = complete;
+			}
+			
+			public void update(boolean[] assigned) {
+				this.slot = -1;
+				this.check = complete;
+				for (int i : shape.slots) {
+					if (assigned[i] && slot < 0 && complete) slot = i;
+					check &= assigned[i];
+				}
+			}
 
+			@Override
+			public int compareTo(Step other) {
+				if (this.check != other.check) return this.check ? -1 : 1;
+				if ((this.slot >= 0) != (other.slot >= 0)) return this.slot >= 0 ? -1 : 1;
+				return this.size - other.size;
+			}
+		}
+		
+		private class Join {
+			public final List<Step> plan;
+			public final Set<Dob> truths;
+			public final Multimap<Atom, Dob> support;
+			public final Pool pool;
+			public final List<Unification.Distinct> distincts;
+			public final Unification[] frames;
+			
+			public Join(Rule rule, List<Step> plan, Set<Dob> truths, 
+					Multimap<Atom, Dob> support, Pool pool) {
+				this.plan = plan;
+				this.truths = truths;
+				this.support = support;
+				this.pool = pool;
+				this.distincts = rule.getDistincts();
+				this.frames = new Unification[plan.size() + 1];
+				for (int i = 0; i < frames.length; i++) frames[i] = Unification.from(rule.vars);
+			}
+			
+			public void run(int depth, List<Unification> result) {
+				Unification current = frames[depth];
+				if (depth == plan.size()) {
+					if (current.isValid()) result.add(current.copy());
+					return;
+				}
+				
+				Step step = plan.get(depth);
+				if (step.check) {
+					Dob generated = pool.render(step.shape.template, current);
+					if (truths.contains(generated) != step.shape.atom.truth) return;
+					Unification next = frames[depth + 1];
+					System.arraycopy(current.assigned, 0, next.assigned, 0, next.assigned.length);
+					run(depth + 1, result);
+				} else if (step.slot < 0) {
+					join(step, support.get(step.shape.atom), depth, result);
+				} else for (Multimap<Dob, Dob> index : step.shape.getIndexes(step.slot)) {
+					join(step, index.get(current.assigned[step.slot]), depth, result);
+				}
+			}
+			
+			private void join(Step step, Collection<Dob> grounds, int depth, List<Unification> result) {
+				Unification current = frames[depth], next = frames[depth + 1];
+				for (Dob ground : grounds) {
+					if (ops.exceeded()) return;
+					System.arraycopy(current.assigned, 0, next.assigned, 0, next.assigned.length);
+					if (!step.shape.matcher.extend(ground, next.assigned)) continue;
+					if (!next.evaluateDistinct(distincts)) continue;
+					run(depth + 1, result);
+				}
+			}
+		}
 	}
 
 	/**
@@ -121,10 +936,15 @@ public abstract class Renderer {
 			this.ops.begin();
 		}
 
+		@Override public Renderer useWorkers(ForkJoinPool workers) {
+			for (Renderer child : this.children) child.useWorkers(workers);
+			return super.useWorkers(workers);
+		}
+
 		@Override
-		public List<Map<Dob, Dob>> apply(Rule rule, Set<Dob> truths,
+		public List<Unification> render(Rule rule, Set<Dob> truths,
 				Multimap<Atom, Dob> support, Pool pool) {
-			List<Map<Dob,Dob>> result = Lists.newArrayList();
+			List<Unification> result = Lists.newArrayList();
 
 			while (true) {
 				if (current == null) {
@@ -133,13 +953,186 @@ public abstract class Renderer {
 					current = this.children.get(pos);
 				}
 
-				result = current.apply(rule, truths, support, pool);
+				result = current.render(rule, truths, support, pool);
 				if (current.ops.failed) current = null;
 				else return result;
 			}
 		}
 	}
 
+	/**
+	 * This renderer measures its children on every rule that it renders 
+	 * and keeps rendering each rule with the child that has been cheapest 
+	 * so far. Children are compared by racing them: every child renders 
+	 * the same call and is timed on it. The first few calls for a rule are
+	 * raced and then one call is raced whenever a period runs out in case 
+	 * the support for the rule has changed shape. The period doubles every
+	 * time that the same child wins so that settled rules are rarely 
+	 * disturbed. Children that lost a race badly sit out all but every 
+	 * few races after the first ones. <br>
+	 * Children that failed the last time they were raced are only chosen
+	 * when all of the children failed. If the chosen child fails, the last
+	 * child finishes the render, so the last child should not have a limit.
+	 * @author ptpham
+	 *
+	 */
+	public static class Adaptive extends Renderer {
+		public static final int TRIALS = 3, PERIOD = 16, MAX_PERIOD = 4096;
+		public static final int FULL_RACES = 4, LOSS_FACTOR = 8;
+		public final ImmutableList<Renderer> children;
+		private final Map<Rule, Track> tracks = Maps.newHashMap();
+
+		private Adaptive(Renderer... children) {
+			Preconditions.checkArgument(children.length > 0, "Adaptive renderers need children!");
+			this.children = ImmutableList.copyOf(children);
+		}
+
+		@Override public Renderer useWorkers(ForkJoinPool workers) {
+			for (Renderer child : this.children) child.useWorkers(workers);
+			return super.useWorkers(workers);
+		}
+		
+		/**
+		 * The running totals for one child on one rule. The cost is a
+		 * moving average of the time that the child took in races, so it
+		 * follows the rule as its support changes.
+		 */
+		public static class Statistics {
+			public final Renderer renderer;
+			public long renders, races, failures, nanos, ops, outputs;
+			public double cost;
+			public boolean failed;
+			
+			private Statistics(Renderer renderer) { this.renderer = renderer; }
+			
+			private void record(long nanos, long ops, int outputs, boolean failed) {
+				this.renders++;
+				this.nanos += nanos;
+				this.ops += ops;
+				this.outputs += outputs;
+				if (failed) this.failures++;
+			}
+			
+			private void race(long nanos, boolean failed) {
+				this.cost = races == 0 ? nanos : (3 * cost + nanos) / 4;
+				this.failed = failed;
+				this.races++;
+			}
+			
+			@Override
+			public String toString() {
+				return renderer.getClass().getSimpleName() + "(renders=" + renders + ", races=" + races 
+					+ ", failures=" + failures + ", cost=" + (long)cost + "ns, ops=" + ops + ", outputs=" + outputs + ")";
+			}
+		}
+		
+		private class Track {
+			public final Statistics[] stats = new Statistics[children.size()];
+			public int races, period = PERIOD, since, choice;
+			
+			public Track() {
+				for (int i = 0; i < stats.length; i++) stats[i] = new Statistics(children.get(i));
+			}
+			
+			public boolean race() {
+				if (races < TRIALS) return true;
+				return ++since >= period;
+			}
+			
+			public void settle() {
+				int winner = getCheapest(stats);
+				this.period = winner == choice ? Math.min(2 * period, MAX_PERIOD) : PERIOD;
+				this.choice = winner;
+				this.since = 0;
+				this.races++;
+			}
+		}
+
+		@Override
+		public List<Unification> render(Rule rule, Set<Dob> truths,
+				Multimap<Atom, Dob> support, Pool pool) {
+			ops.begin();
+			Track track = tracks.get(rule);
+			if (track == null) tracks.put(rule, track = new Track());
+			if (track.race()) return race(track, rule, truths, support, pool);
+			
+			Renderer child = this.children.get(track.choice);
+			long begin = System.nanoTime();
+			List<Unification> result = child.render(rule, truths, support, pool);
+			track.stats[track.choice].record(System.nanoTime() - begin, 
+				child.ops.cur, result.size(), child.ops.failed);
+			
+			Renderer last = this.children.get(this.children.size() - 1);
+			if (child.ops.failed && child != last) {
+				track.stats[track.choice].failed = true;
+				track.choice = getCheapest(track.stats);
+				result = last.render(rule, truths, support, pool);
+				child = last;
+			}
+			
+			this.ops.cur = child.ops.cur;
+			this.ops.failed = child.ops.failed;
+			return result;
+		}
+		
+		private List<Unification> race(Track track, Rule rule, Set<Dob> truths, 
+				Multimap<Atom, Dob> support, Pool pool) {
+			List<Unification> result = null;
+			boolean full = track.races < TRIALS || track.races % FULL_RACES == 0;
+			double best = track.stats[getCheapest(track.stats)].cost;
+			for (int i = 0; i < this.children.size(); i++) {
+				Renderer child = this.children.get(i);
+				if (!full && track.stats[i].cost > LOSS_FACTOR * best) continue;
+				long begin = System.nanoTime();
+				List<Unification> rendered = child.render(rule, truths, support, pool);
+				long nanos = System.nanoTime() - begin;
+				
+				track.stats[i].race(nanos, child.ops.failed);
+				track.stats[i].record(nanos, child.ops.cur, rendered.size(), child.ops.failed);
+				if (child.ops.failed) continue;
+				
+				result = rendered;
+				this.ops.cur = child.ops.cur;
+			}
+			
+			track.settle();
+			this.ops.failed = result == null;
+			return result == null ? Lists.<Unification>newArrayList() : result;
+		}
+		
+		private static int getCheapest(Statistics[] stats) {
+			int result = 0;
+			for (int i = 1; i < stats.length; i++) {
+				if (stats[i].failed != stats[result].failed) {
+					if (stats[result].failed) result = i;
+				} else if (stats[i].cost < stats[result].cost) result = i;
+			}
+			return result;
+		}
+		
+		/**
+		 * @param rule
+		 * @return the statistics of each child on the rule in the order
+		 * of the children or an empty list if the rule was never rendered
+		 */
+		public List<Statistics> getStatistics(Rule rule) {
+			Track track = tracks.get(rule);
+			if (track == null) return ImmutableList.of();
+			return ImmutableList.copyOf(track.stats);
+		}
+		
+		/**
+		 * @param rule
+		 * @return the child that this renderer has settled on for the 
+		 * rule or null if the rule was never rendered
+		 */
+		public Renderer getChoice(Rule rule) {
+			Track track = tracks.get(rule);
+			if (track == null) return null;
+			return this.children.get(track.choice);
+		}
+	}
+
 	public static Multimap<Atom,Dob> getNaiveSupport(Rule rule, Set<Dob> truths) {
 		Multimap<Atom,Dob> result = HashMultimap.create();
 		for (Atom atom : rule.body) {
@@ -154,8 +1147,8 @@ public abstract class Renderer {
 	 * the provided unification lists in the given iterator. The unifications
 	 * in each list will be combined until one of two cases occurs. If the 
 	 * unification fails, then the iterator will be advanced in the failing
-	 * position. If the unification succeeds, then a submerged unification map
-	 * will be constructed and added to the result.
+	 * position. If the unification succeeds, then a copy of the unification
+	 * will be added to the result.
 	 * @param rule
 	 * @param check once a unification list is merged into a unification, these
 	 * atoms will be unified with that unification and checked for existence in
@@ -168,14 +1161,14 @@ public abstract class Renderer {
 	 * @param limiter
 	 * @return
 	 */
-	public static List<Map<Dob, Dob>> applyIterative(Rule rule,
+	public static List<Unification> applyIterative(Rule rule,
 			List<Atom> check, Cartesian.AdvancingIterator<Unification> iterator, Pool pool,
 			Set<Dob> truths, Limiter.Operations limiter) {
-		List<Map<Dob,Dob>> result = Lists.newArrayList();
+		List<Unification> result = Lists.newArrayList();
 		Unification unify = Unification.from(rule.vars);
-		if (Terra.applyVarless(rule, truths, result)) return result;
+		if (Terra.applyVarlessUnifications(rule, truths, result)) return result;
 
-		List<Unification.Distinct> distincts = Unification.convert(rule.distinct, rule.vars);
+		List<Unification.Distinct> distincts = rule.getDistincts();
 		while (iterator.hasNext() && !limiter.exceeded()) {
 			unify.clear();
 
@@ -187,14 +1180,14 @@ public abstract class Renderer {
 
 			// Verify that the atoms that did not participate in the unification
 			// have their truth values satisfied.
-			Map<Dob, Dob> converted = failure == -1 ? unify.toMap() : null;
-			if (converted != null && check.size() > 0) {
-				if (!Terra.checkAtoms(converted, check, truths, pool)) continue;
+			boolean merged = failure == -1;
+			if (merged && check.size() > 0) {
+				if (!Terra.checkAtoms(rule, unify, check, truths, pool)) continue;
 			}
 
 			// Final check for distincts before rendering head
-			if (converted != null && unify.isValid()) {
-				result.add(converted);
+			if (merged && unify.isValid()) {
+				result.add(unify.copy());
 			} else if (failure >= 0) {
 				iterator.advance(failure);
 			} 
@@ -220,15 +1213,15 @@ public abstract class Renderer {
 	 * @param ops
 	 * @return
 	 */
-	public static List<Map<Dob, Dob>> applyChaining(Rule rule, List<Atom> check,
+	public static List<Unification> applyChaining(Rule rule, List<Atom> check,
 			List<ListMultimap<Unification, Unification>> guide, Set<Dob> truths, Pool pool, Limiter ops) {
-		List<Map<Dob, Dob>> result = Lists.newArrayList();
+		List<Unification> result = Lists.newArrayList();
 
 		// Prepare the data structures we need. This involves finding the masks for
 		// each dimension so we can index into it.
 		List<Unification> masks = Lists.newArrayList();
 		for (int i = 0; i < guide.size(); i++) masks.add(Colut.any(guide.get(i).keySet()));
-		List<Unification.Distinct> distincts = Unification.convert(rule.distinct, rule.vars);
+		List<Unification.Distinct> distincts = rule.getDistincts();
 
 		// Setup initial stack frames
 		Deque<ChainingState> frames = Queues.newArrayDeque();
@@ -255,9 +1248,8 @@ public abstract class Renderer {
 			}
 
 			// Check the atoms and add if successful
-			Map<Dob,Dob> unify = top.unify.toMap();
-			if (!Terra.checkAtoms(unify, check, truths, pool)) continue;
-			result.add(unify);
+			if (!Terra.checkAtoms(rule, top.unify, check, truths, pool)) continue;
+			result.add(top.unify.copy());
 		}
 
 		return result;
@@ -4,7 +4,9 @@ import java.util.*;
 
 import rekkura.logic.model.Atom;
 import rekkura.logic.model.Dob;
+import rekkura.logic.model.Matcher;
 import rekkura.logic.model.Rule;
+import rekkura.logic.model.Template;
 import rekkura.logic.model.Unification;
 import rekkura.logic.structure.Pool;
 import rekkura.util.Cartesian;
@@ -42,8 +44,8 @@ public class Terra {
 	public static Comparator<Atom> getOverlapComparator(final Collection<Dob> vars) {
 		return new Comparator<Atom>() {
 			@Override public int compare(Atom first, Atom second) {
-				int left = Colut.countIn(first.dob.fullIterable(), vars);
-				int right = Colut.countIn(second.dob.fullIterable(), vars);
+				int left = first.dob.countIn(vars);
+				int right = second.dob.countIn(vars);
 				return left - right;
 			}
 		};
@@ -69,6 +71,36 @@ public class Terra {
 		return expanders;
 	}
 
+	/**
+	 * Orders the positive atoms of a rule for joining. The cheapest atom
+	 * goes first. After that, the cheapest atom that shares a variable 
+	 * with the atoms before it goes next, so that a step is only a cross
+	 * product when the rule leaves no other choice.
+	 * @param rule
+	 * @param costs
+	 * @return
+	 */
+	public static List<Atom> getJoinOrder(Rule rule, Map<Atom,Integer> costs) {
+		List<Atom> remaining = Atom.filterPositives(rule.body);
+		Colut.sortByMap(remaining, costs, 0);
+		
+		List<Atom> result = Lists.newArrayList();
+		Set<Dob> bound = Sets.newHashSet();
+		while (remaining.size() > 0) {
+			Atom next = Colut.first(remaining);
+			for (Atom atom : remaining) {
+				if (!atom.dob.containsAny(bound)) continue;
+				next = atom;
+				break;
+			}
+			
+			remaining.remove(next);
+			result.add(next);
+			bound.addAll(Colut.intersect(next.dob.fullIterable(), rule.vars));
+		}
+		return result;
+	}
+
 	protected static void prioritizeExpanders(Rule rule, List<Atom> expanders) {
 		// Prioritize variables in the head
 		List<Comparator<Atom>> comparators = Lists.newArrayList();
@@ -92,8 +124,8 @@ public class Terra {
 	public static Comparator<Atom> getPresenceComparator(final Collection<Dob> targets) {
 		return new Comparator<Atom>() {
 			@Override public int compare(Atom left, Atom right) {
-				boolean first = Colut.containsAny(left.dob.fullIterable(), targets);
-				boolean second = Colut.containsAny(right.dob.fullIterable(), targets);
+				boolean first = left.dob.containsAny(targets);
+				boolean second = right.dob.containsAny(targets);
 				if (first == second) return 0;
 				if (first) return -1;
 				return 1;
@@ -117,6 +149,16 @@ public class Terra {
 		return false;
 	}
 
+	public static boolean applyVarlessUnifications(Rule rule, Set<Dob> truths, List<Unification> result) {
+		if (rule.vars.size() == 0) {
+			if(checkGroundAtoms(rule.body, truths)) {
+				result.add(Unification.from(rule.vars));
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public static Dob applyVarless(Rule rule, Set<Dob> truths, Pool pool) {
 		List<Map<Dob,Dob>> result = Lists.newArrayList();
 		if (applyVarless(rule, truths, result)) return pool.render(rule.head.dob, Colut.any(result));
@@ -183,6 +225,20 @@ public class Terra {
 		return result;
 	}
 	
+	/**
+	 * Renders the head of the rule under each unification with its template.
+	 * @param unifies
+	 * @param rule
+	 * @param pool
+	 * @return
+	 */
+	public static Set<Dob> renderUnifiedHeads(Iterable<Unification> unifies, Rule rule, Pool pool) {
+		Set<Dob> result = Sets.newHashSet();
+		Template head = rule.getTemplate(rule.head);
+		for (Unification unify : unifies) result.add(pool.render(head, unify));
+		return result;
+	}
+	
 	/**
 	 * Attempts to generate a rule's head with the given assignment to the rule's body
 	 * and the given set of things that are currently true.
@@ -220,10 +276,32 @@ public class Terra {
 		return true;
 	}
 	
+	/**
+	 * This does the same check as the map version using the templates
+	 * that the rule has for its atoms.
+	 * @param rule
+	 * @param unify
+	 * @param atoms
+	 * @param truths
+	 * @param pool
+	 * @return
+	 */
+	public static boolean checkAtoms(Rule rule, Unification unify,
+			List<Atom> atoms, Set<Dob> truths, Pool pool) {
+		for (Atom atom : atoms) {
+			Template template = rule.getTemplate(atom);
+			if (template == null) template = new Template(atom.dob, rule.vars);
+			Dob generated = pool.render(template, unify);
+			if (generated == null || truths.contains(generated) != atom.truth) return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * Converts a basic support to a more performant representation.
 	 * Each inner list at position i corresponds to the unifications
 	 * that succeeded with the atom at position i in the body of the rule.
+	 * Grounds are checked with the compiled matchers of the rule.
 	 * @param rule
 	 * @param support
 	 * @param positives the list of atoms we actually want to keep from the
@@ -237,10 +315,15 @@ public class Terra {
  		for (Atom atom : positives) {
 			Collection<Dob> grounds = support.get(atom);
 			List<Unification> unifies = Lists.newArrayList();
+			Matcher matcher = rule.getMatcher(atom);
+			if (matcher == null) matcher = new Matcher(atom.dob, rule.vars);
+			
+			Unification unify = Unification.from(rule.vars);
 			for (Dob ground : grounds) {
-				Map<Dob, Dob> unify = Unifier.unifyVars(atom.dob, ground, rule.vars);
-				Unification wrapped = unify == null ? null : Unification.from(unify, rule.vars);
-				if (wrapped != null) unifies.add(wrapped); 
+				if (matcher.match(ground, unify)) {
+					unifies.add(unify);
+					unify = Unification.from(rule.vars);
+				} else unify.clear();
 			}
 			result.add(unifies);
 		}
@@ -1,11 +1,12 @@
 package rekkura.logic.model;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.NoSuchElementException;
 
 import rekkura.logic.format.StandardFormat;
 import rekkura.util.CachingSupplier;
@@ -25,48 +26,113 @@ import com.google.common.collect.Lists;
 public class Dob {
 	public static final ImmutableSet<Dob> EMPTY_SET = ImmutableSet.of();
 	public static final ImmutableList<Dob> EMPTY_LIST = ImmutableList.of();
+	private static final Dob[] NO_CHILDREN = new Dob[0];
 	
 	public final String name;
-	private List<Dob> children;
+	private final Dob[] children;
+	private final int hash, nodes, depth;
 	
 	public Dob(String name) { 
 		this.name = name;
-		this.children = Lists.newArrayList();
+		this.children = NO_CHILDREN;
+		this.hash = name.hashCode();
+		this.nodes = 1;
+		this.depth = 0;
 	}
 	
 	public Dob(List<Dob> children) { 
-		this.name = "";
-		this.children = Lists.newArrayList(children);
+		this("", children.toArray(new Dob[children.size()]));
 	}
 	
 	public Dob(Dob... dobs) {
-		this.name = "";
-		this.children = Lists.newArrayList(dobs);
+		this("", dobs.clone());
+	}
+	
+	private Dob(String name, Dob[] children) {
+		this.name = name;
+		this.children = children.length == 0 ? NO_CHILDREN : children;
+		
+		int hash = 0, nodes = 1, depth = 0;
+		for (Dob child : children) {
+			hash = 31 * hash + child.hash;
+			nodes += child.nodes;
+			depth = Math.max(depth, child.depth + 1);
+		}
+		
+		this.hash = hash;
+		this.nodes = nodes;
+		this.depth = depth;
 	}
 
-	public boolean isTerminal() { return this.children.size() == 0; }
-	public Dob at(int pos) { return this.children.get(pos); }
-	public int size() { return this.children.size(); }
+	public boolean isTerminal() { return this.children.length == 0; }
+	public Dob at(int pos) { return this.children[pos]; }
+	public int size() { return this.children.length; }
 	public List<Dob> childCopy() { return Lists.newArrayList(this.children); }
 	public Dob deepCopy() {
 		if (isTerminal()) return new Dob(name);
-		List<Dob> copied = Lists.newArrayList();
-		for (Dob dob : children) copied.add(dob.deepCopy());
-		return new Dob(copied);
+		Dob[] copied = new Dob[children.length];
+		for (int i = 0; i < copied.length; i++) copied[i] = children[i].deepCopy();
+		return new Dob("", copied);
 	}
-
+	
+	/**
+	 * @return a hash of the structure of this dob that does not depend on 
+	 * the identities of its nodes. Dobs still use reference equality, so 
+	 * this is not the same as {@code hashCode}.
+	 */
+	public int structuralHash() { return this.hash; }
+	
+	/**
+	 * @return the number of nodes in this dob, including itself
+	 */
+	public int nodeCount() { return this.nodes; }
+	
+	/**
+	 * @return the length of the longest path to a terminal. Terminals have depth 0.
+	 */
+	public int depth() { return this.depth; }
+	
+	/**
+	 * These walks visit every node in this dob without allocating.
+	 */
+	public boolean containsAny(Collection<Dob> targets) {
+		if (targets == null) return false;
+		if (targets.contains(this)) return true;
+		for (Dob child : children) if (child.containsAny(targets)) return true;
+		return false;
+	}
+	
+	public boolean containsNone(Collection<Dob> targets) { return !containsAny(targets); }
+	
+	public int countIn(Collection<Dob> targets) {
+		int result = targets.contains(this) ? 1 : 0;
+		for (Dob child : children) result += child.countIn(targets);
+		return result;
+	}
+	
+	/**
+	 * Iterates over the nodes in the same order that a stack based 
+	 * walk would: each node is followed by its children in reverse.
+	 * @return
+	 */
 	public Iterator<Dob> fullIterator() {
 		return new Iterator<Dob>() {
-			Stack<Dob> unused = new Stack<Dob>();
-			{ unused.push(Dob.this); }
+			Dob[] unused = new Dob[Math.min(nodes, 16)];
+			int top = 0;
+			{ unused[top++] = Dob.this; }
 			
 			@Override public boolean hasNext() 
-			{ return unused.size() > 0; }
+			{ return top > 0; }
 
 			@Override
 			public Dob next() {
-				Dob result = unused.pop();
-				for (Dob dob : result.childIterable()) unused.push(dob);
+				if (top == 0) throw new NoSuchElementException();
+				Dob result = unused[--top];
+				Dob[] pushed = result.children;
+				if (top + pushed.length > unused.length) {
+					unused = Arrays.copyOf(unused, Math.max(2 * unused.length, top + pushed.length));
+				}
+				for (Dob dob : pushed) unused[top++] = dob;
 				return result;
 			}
 
@@ -127,7 +193,7 @@ public class Dob {
 		};
 	}
 
-	public Iterable<Dob> childIterable() { return this.children; }
+	public Iterable<Dob> childIterable() { return Collections.unmodifiableList(Arrays.asList(this.children)); }
 	
 	public static Iterable<Dob> fullIterable(Iterable<Dob> dobs) {
 		return new NestedIterable<Dob, Dob>(dobs) {
@@ -0,0 +1,173 @@
+package rekkura.logic.model;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+/**
+ * A matcher is a body dob compiled into a flat program that matches
+ * ground dobs against it. Each instruction looks at the node at some
+ * path from the root of the ground and either checks its shape,
+ * binds it to a variable slot or checks it against a slot that
+ * was bound earlier. Slots are positions in the variables of the
+ * rule, so a match writes straight into {@link Unification#assigned}.
+ * <br>
+ * This succeeds exactly when {@code Unifier.unifyVars} would. As with
+ * the unifier, a variable that lines up with itself is not assigned.
+ * Matchers hold no state while matching, so they can be shared 
+ * between threads.
+ * @author ptpham
+ *
+ */
+public class Matcher {
+	public static final int ARITY = 0, CONSTANT = 1, BIND = 2, CHECK = 3;
+
+	public final Dob base;
+	public final ImmutableList<Dob> vars;
+
+	private final int[] ops, args;
+	private final Dob[] constants;
+	private final int[][] paths;
+
+	public Matcher(Dob base, ImmutableList<Dob> vars) {
+		this.base = base;
+		this.vars = vars;
+
+		Compiler compiler = new Compiler(vars);
+		compiler.compile(base, new int[0]);
+
+		int size = compiler.ops.size();
+		this.ops = new int[size];
+		this.args = new int[size];
+		this.constants = compiler.constants.toArray(new Dob[size]);
+		this.paths = compiler.paths.toArray(new int[size][]);
+		for (int i = 0; i < size; i++) {
+			this.ops[i] = compiler.ops.get(i);
+			this.args[i] = compiler.args.get(i);
+		}
+	}
+
+	/**
+	 * Attempts to match the ground against the base of this matcher.
+	 * Slots that the base does not mention are left alone.
+	 * This may write to some of the slots even on failure.
+	 * @param ground
+	 * @param assigned the slots of the variables of this matcher
+	 * @return
+	 */
+	public boolean match(Dob ground, Dob[] assigned) {
+		return run(ground, assigned, false);
+	}
+
+	public boolean match(Dob ground, Unification unify) {
+		return match(ground, unify.assigned);
+	}
+
+	/**
+	 * This is like {@code match} except that variables that are
+	 * already assigned are checked instead of bound.
+	 * @param ground
+	 * @param assigned
+	 * @return
+	 */
+	public boolean extend(Dob ground, Dob[] assigned) {
+		return run(ground, assigned, true);
+	}
+
+	private boolean run(Dob ground, Dob[] assigned, boolean extend) {
+		if (ground == null) return false;
+
+		for (int i = 0; i < ops.length; i++) {
+			Dob node = ground;
+			int[] path = paths[i];
+			for (int j = 0; j < path.length; j++) node = node.at(path[j]);
+
+			switch (ops[i]) {
+			case ARITY: if (node.size() != args[i]) return false; break;
+			case CONSTANT: if (node != constants[i]) return false; break;
+			case BIND:
+				if (node == constants[i]) { if (!extend) assigned[args[i]] = null; }
+				else if (!extend || assigned[args[i]] == null) assigned[args[i]] = node;
+				else if (assigned[args[i]] != node) return false;
+				break;
+			case CHECK:
+				if (node == constants[i]) break;
+				if (assigned[args[i]] == null) assigned[args[i]] = node;
+				else if (assigned[args[i]] != node) return false;
+				break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param slot
+	 * @return the path from the root of the base to the first 
+	 * occurrence of the variable in the slot or null if it does 
+	 * not occur
+	 */
+	public List<Integer> getPath(int slot) {
+		for (int i = 0; i < ops.length; i++) {
+			if (ops[i] == BIND && args[i] == slot) return Ints.asList(paths[i]);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of instructions in the program
+	 */
+	public int size() { return this.ops.length; }
+
+	public static ImmutableList<Matcher> compile(Iterable<Atom> atoms, ImmutableList<Dob> vars) {
+		ImmutableList.Builder<Matcher> result = ImmutableList.builder();
+		for (Atom atom : atoms) result.add(new Matcher(atom.dob, vars));
+		return result.build();
+	}
+
+	private static class Compiler {
+		public final ImmutableList<Dob> vars;
+		public final boolean[] bound;
+
+		public final List<Integer> ops = Lists.newArrayList();
+		public final List<Integer> args = Lists.newArrayList();
+		public final List<Dob> constants = Lists.newArrayList();
+		public final List<int[]> paths = Lists.newArrayList();
+
+		public Compiler(ImmutableList<Dob> vars) {
+			this.vars = vars;
+			this.bound = new boolean[vars.size()];
+		}
+
+		/**
+		 * Nodes are visited in preorder, so the shape of every node
+		 * is checked before any of its children are looked at.
+		 */
+		public void compile(Dob dob, int[] path) {
+			int slot = dob.isTerminal() ? vars.indexOf(dob) : -1;
+			if (slot >= 0) {
+				add(bound[slot] ? CHECK : BIND, slot, dob, path);
+				bound[slot] = true;
+			} else if (dob.isTerminal()) {
+				add(CONSTANT, 0, dob, path);
+			} else {
+				add(ARITY, dob.size(), null, path);
+				for (int i = 0; i < dob.size(); i++) {
+					int[] child = new int[path.length + 1];
+					System.arraycopy(path, 0, child, 0, path.length);
+					child[path.length] = i;
+					compile(dob.at(i), child);
+				}
+			}
+		}
+
+		private void add(int op, int arg, Dob constant, int[] path) {
+			ops.add(op);
+			args.add(arg);
+			constants.add(constant);
+			paths.add(path);
+		}
+	}
+}
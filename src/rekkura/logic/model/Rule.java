@@ -25,6 +25,10 @@ public class Rule {
 	public final ImmutableList<Distinct> distinct;
 	public final ImmutableList<Dob> vars;
 	
+	private volatile ImmutableList<Matcher> matchers;
+	private volatile ImmutableList<Template> templates;
+	private volatile ImmutableList<Unification.Distinct> distincts;
+	
 	public static class Builder {
 		public Atom head;
 		public final List<Atom> body = Lists.newArrayList();
@@ -59,8 +63,69 @@ public class Rule {
 		return builder;
 	}
 	
+	/**
+	 * The matchers for the body are compiled the first time they are
+	 * asked for and kept for the life of the rule.
+	 * @return a matcher for each atom in the body, in the same order
+	 */
+	public ImmutableList<Matcher> getMatchers() {
+		ImmutableList<Matcher> result = this.matchers;
+		if (result == null) this.matchers = result = Matcher.compile(body, vars);
+		return result;
+	}
+	
+	/**
+	 * @param atom an atom from the body of this rule
+	 * @return the matcher for the atom or null if it is not in the body
+	 */
+	public Matcher getMatcher(Atom atom) {
+		for (int i = 0; i < body.size(); i++) {
+			if (body.get(i) == atom) return getMatchers().get(i);
+		}
+		return null;
+	}
+	
+	/**
+	 * Like the matchers, the templates are compiled on first use.
+	 * @return a template for each atom in the body followed by 
+	 * the template for the head
+	 */
+	public ImmutableList<Template> getTemplates() {
+		ImmutableList<Template> result = this.templates;
+		if (result == null) {
+			ImmutableList.Builder<Template> builder = ImmutableList.builder();
+			for (Atom atom : body) builder.add(new Template(atom.dob, vars));
+			builder.add(new Template(head.dob, vars));
+			this.templates = result = builder.build();
+		}
+		return result;
+	}
+	
+	/**
+	 * @param atom the head or an atom from the body of this rule
+	 * @return the template for the atom or null if it is not in the rule
+	 */
+	public Template getTemplate(Atom atom) {
+		if (atom == head) return Colut.end(getTemplates());
+		for (int i = 0; i < body.size(); i++) {
+			if (body.get(i) == atom) return getTemplates().get(i);
+		}
+		return null;
+	}
+	
+	/**
+	 * The distincts are converted to slots on first use.
+	 * @return the distincts of this rule in terms of the 
+	 * slots of its variables
+	 */
+	public ImmutableList<Unification.Distinct> getDistincts() {
+		ImmutableList<Unification.Distinct> result = this.distincts;
+		if (result == null) this.distincts = result = ImmutableList.copyOf(Unification.convert(distinct, vars));
+		return result;
+	}
+	
 	public boolean isGrounded(Dob dob) {
-		return Colut.containsNone(dob.fullIterable(), vars);
+		return dob.containsNone(vars);
 	}
 	
 	public static class Distinct {
@@ -0,0 +1,138 @@
+package rekkura.logic.model;
+
+import java.util.List;
+
+import rekkura.logic.structure.DobSubmerger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A template is a dob compiled into a postfix program that renders
+ * it under the variable slots of a {@link Unification}. Parts of the
+ * dob without variables are pushed as they are, variables are pushed
+ * from their slots and every other node is looked up in the submerger
+ * from the children on the stack. Rendering does not build a map or
+ * an intermediate tree unless the result has never been seen before.
+ * The stack is scratch space that each thread keeps for all templates,
+ * or that the caller passes in.
+ * <br>
+ * Unassigned variables render as themselves, like {@code Unifier.replace}.
+ * @author ptpham
+ *
+ */
+public class Template {
+	public static final int CONSTANT = 0, SLOT = 1, NODE = 2;
+
+	private static final ThreadLocal<Dob[]> stacks = new ThreadLocal<Dob[]>() {
+		@Override protected Dob[] initialValue() { return new Dob[16]; }
+	};
+
+	public final Dob base;
+	public final List<Dob> vars;
+
+	private final int[] ops, args;
+	private final Dob[] constants;
+	private final int height;
+
+	public Template(Dob base, List<Dob> vars) {
+		this.base = base;
+		this.vars = vars;
+
+		Compiler compiler = new Compiler(vars);
+		compiler.compile(base);
+
+		int size = compiler.ops.size();
+		this.ops = new int[size];
+		this.args = new int[size];
+		this.constants = compiler.constants.toArray(new Dob[size]);
+		this.height = compiler.height;
+		for (int i = 0; i < size; i++) {
+			this.ops[i] = compiler.ops.get(i);
+			this.args[i] = compiler.args.get(i);
+		}
+	}
+
+	/**
+	 * @param assigned the slots of the variables of this template
+	 * @param dobs
+	 * @return the submerged rendering of the base
+	 */
+	public Dob render(Dob[] assigned, DobSubmerger dobs) {
+		Dob[] stack = stacks.get();
+		if (stack.length < height) stacks.set(stack = new Dob[Math.max(height, 2 * stack.length)]);
+		return render(assigned, dobs, stack);
+	}
+
+	/**
+	 * @param assigned the slots of the variables of this template
+	 * @param dobs
+	 * @param stack scratch space that holds at least {@code height} dobs
+	 * @return the submerged rendering of the base
+	 */
+	public Dob render(Dob[] assigned, DobSubmerger dobs, Dob[] stack) {
+		int top = 0;
+
+		for (int i = 0; i < ops.length; i++) {
+			switch (ops[i]) {
+			case CONSTANT: stack[top++] = constants[i]; break;
+			case SLOT:
+				Dob value = assigned[args[i]];
+				stack[top++] = value != null ? value : constants[i];
+				break;
+			case NODE:
+				top -= args[i];
+				stack[top] = dobs.submergeNode(stack, top, args[i]);
+				top++;
+				break;
+			}
+		}
+
+		if (ops[ops.length - 1] == NODE) return stack[0];
+		return dobs.submerge(stack[0]);
+	}
+
+	public Dob render(Unification unify, DobSubmerger dobs) {
+		return render(unify.assigned, dobs);
+	}
+
+	/**
+	 * @return the number of instructions in the program
+	 */
+	public int size() { return this.ops.length; }
+
+	/**
+	 * @return the most dobs that are on the stack at once
+	 */
+	public int height() { return this.height; }
+
+	private static class Compiler {
+		public final List<Dob> vars;
+
+		public final List<Integer> ops = Lists.newArrayList();
+		public final List<Integer> args = Lists.newArrayList();
+		public final List<Dob> constants = Lists.newArrayList();
+		public int height, depth;
+
+		public Compiler(List<Dob> vars) { this.vars = vars; }
+
+		public void compile(Dob dob) {
+			int slot = dob.isTerminal() ? vars.indexOf(dob) : -1;
+			if (slot >= 0) add(SLOT, slot, dob);
+			else if (dob.isTerminal() || dob.containsNone(vars)) add(CONSTANT, 0, dob);
+			else {
+				for (int i = 0; i < dob.size(); i++) compile(dob.at(i));
+				add(NODE, dob.size(), null);
+			}
+		}
+
+		private void add(int op, int arg, Dob constant) {
+			if (op == NODE) depth -= arg - 1;
+			else depth++;
+			height = Math.max(height, depth);
+
+			ops.add(op);
+			args.add(arg);
+			constants.add(constant);
+		}
+	}
+}
@@ -10,6 +10,8 @@ import rekkura.logic.algorithm.Terra;
 import rekkura.logic.model.Atom;
 import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
+import rekkura.logic.model.Unification;
+import rekkura.logic.structure.Pool;
 import rekkura.state.algorithm.BackwardTraversal;
 import rekkura.util.OtmUtil;
 
@@ -35,13 +37,24 @@ public class StratifiedBackward extends StratifiedProver {
 	 */
 	private final Map<Rule,Multimap<Atom,Dob>> previous = Maps.newHashMap();
 	
-	public StratifiedBackward(Collection<Rule> rules) {
-		super(rules);
+	public StratifiedBackward(Collection<Rule> rules) { this(rules, new Pool()); }
+	
+	public StratifiedBackward(Collection<Rule> rules, Pool pool) {
+		super(rules, pool);
 		this.visitor = createVisitor();
 		this.traversal = new BackwardTraversal<Rule,Dob>(visitor, this.rta.ruleToGenRule);
 		clear();
 	}
 	
+	protected StratifiedBackward(StratifiedBackward shared) {
+		super(shared);
+		this.visitor = createVisitor();
+		this.traversal = new BackwardTraversal<Rule,Dob>(visitor, this.rta.ruleToGenRule);
+		clear();
+	}
+	
+	@Override public StratifiedBackward fork() { return new StratifiedBackward(this); }
+	
 	protected BackwardTraversal.Visitor<Rule, Dob> createVisitor() {
 		return new BackwardTraversal.Visitor<Rule, Dob>() {
 			@Override public Set<Dob> expandNode(Rule rule) 
@@ -52,7 +65,7 @@ public class StratifiedBackward extends StratifiedProver {
 	public void clear() {
 		this.truths.clear();
 		this.previous.clear();
-		this.cachet.formToGrounds.clear();
+		this.cachet.clearGrounds();
 		this.traversal.clear();
 	}
 	
@@ -117,8 +130,8 @@ public class StratifiedBackward extends StratifiedProver {
 		Set<Dob> generated = Sets.newHashSet();
 		Renderer renderer = this.renderers.get(rule);
 		for (Multimap<Atom,Dob> support : supports) {
-			List<Map<Dob,Dob>> unifies = renderer.apply(rule, truths, support, pool);
-			generated.addAll(Terra.renderHeads(unifies, rule, pool));
+			List<Unification> unifies = renderer.render(rule, truths, support, pool);
+			generated.addAll(Terra.renderUnifiedHeads(unifies, rule, pool));
 		}
 		
 		// Store the current support in previous so that we can do
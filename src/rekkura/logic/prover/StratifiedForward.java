@@ -1,18 +1,30 @@
 package rekkura.logic.prover;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import rekkura.logic.algorithm.Renderer;
 import rekkura.logic.algorithm.Terra;
 import rekkura.logic.model.Atom;
 import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+import rekkura.state.algorithm.Topper;
 import rekkura.util.Colut;
 
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
 
 /**
@@ -21,33 +33,98 @@ import com.google.common.collect.*;
  * if you want to know everything that could be derived from
  * a particular rule. For that use case use {@link StratifiedBackward}. <br>
  * <br>
- * This prover is meant for more exploratory searching.
+ * This prover is meant for more exploratory searching. <br>
+ * <br>
+ * Evaluation is semi-naive. Every truth is stamped with the order in 
+ * which it was stored and every rule remembers when it last fired. When
+ * a rule fires again, it is rendered once for each positive atom that 
+ * has new grounds, joining the new grounds for that atom against the old 
+ * grounds for the atoms before it and all of the grounds for the atoms
+ * after it. With the {@link Renderer.Indexed} renderer, which only joins
+ * atoms against their supports, each assignment is then found exactly 
+ * once, so recursive rules do not redo the joins of earlier firings. 
+ * The other renderers check some positive atoms against all of the 
+ * truths, so they may find an assignment again for a later pivot. That
+ * only costs time, because the heads are collected into a set. <br>
+ * <br>
+ * {@code proveChanges} keeps what was proven between calls and only takes
+ * the base truths that were added and removed. The rules are grouped into
+ * the strongly connected components of the rule graph and a component is 
+ * refreshed, in topological order, only if a truth that one of its bodies
+ * may use changed. Every derived truth counts the rules whose current 
+ * output contains it and stops being true when that count and its base 
+ * truth are gone. A component that is not recursive is rendered again 
+ * and its output is diffed against the last one. A recursive component
+ * deletes everything it derived and derives it again semi-naively, so 
+ * only the net change is passed on. Negative terms are always checked 
+ * against components that have already been refreshed. <br>
+ * <br>
+ * Given workers, {@code proveAll} takes every pending rule at the lowest 
+ * topological level at once, renders them in parallel and only then 
+ * stores what they generated. Refreshes do the same for the components
+ * at a level that are not recursive. The pool must be concurrent.
  * @author ptpham
  *
  */
 public class StratifiedForward extends StratifiedProver {
 
-	private Multimap<Integer, Rule> pendingRules 
+	private TreeMultimap<Integer, Rule> pendingRules 
 		= TreeMultimap.create(Ordering.natural(), Ordering.arbitrary());
 
-	private List<Rule> bodyless = Lists.newArrayList();
+	private List<Rule> unsupported = Lists.newArrayList();
 	private List<Rule> varless = Lists.newArrayList();
 	
-	public StratifiedForward(Collection<Rule> rules) {
-		super(rules);
+	private final Map<Dob, Integer> stamps = Maps.newHashMap();
+	private final Map<Rule, Integer> fired = Maps.newHashMap();
+	private int clock;
+	
+	private final List<List<Rule>> components = Lists.newArrayList();
+	private final Map<Rule, Integer> componentOf = Maps.newHashMap();
+	private final Set<Integer> recursive = Sets.newHashSet();
+	private final List<Integer> levels = Lists.newArrayList();
+	
+	private ForkJoinPool workers;
+	
+	private boolean primed;
+	private final Set<Dob> base = Sets.newHashSet();
+	private final Multiset<Dob> derived = HashMultiset.create();
+	private final Map<Rule, Set<Dob>> produced = Maps.newHashMap();
+	private final TreeSet<Integer> dirty = Sets.newTreeSet();
+	private Map<Dob, Boolean> deferred;
+	
+	public StratifiedForward(Collection<Rule> rules) { this(rules, new Pool()); }
+	
+	public StratifiedForward(Collection<Rule> rules, Pool pool) {
+		super(rules, pool);
 		for (Rule rule : this.rta.allRules) {
-			if (rule.body.size() == 0) bodyless.add(rule);
+			// No truth will ever queue a rule without positive terms,
+			// so these are queued on every reset instead.
+			if (Atom.filterPositives(rule.body).isEmpty()) unsupported.add(rule);
 			if (rule.vars.size() == 0 && rta.ruleOrder.count(rule) == 1) {
 				varless.add(rule);
 			}
 		}
 		
+		groupComponents();
 		clear();
 	}
+	
+	private StratifiedForward(StratifiedForward shared) {
+		super(shared);
+		this.unsupported.addAll(shared.unsupported);
+		this.varless.addAll(shared.varless);
+		this.components.addAll(shared.components);
+		this.componentOf.putAll(shared.componentOf);
+		this.recursive.addAll(shared.recursive);
+		this.levels.addAll(shared.levels);
+		clear();
+	}
+	
+	@Override public StratifiedForward fork() { return new StratifiedForward(this); }
 
 	public void reset(Iterable<Dob> truths) {
 		clear();
-		this.queueRules(bodyless);
+		this.queueRules(unsupported);
 		this.queueRules(varless);
 		for (Dob truth : truths) if (truth != null) queueTruth(truth);
 	}
@@ -55,14 +132,223 @@ public class StratifiedForward extends StratifiedProver {
 	public Set<Dob> proveAll(Iterable<Dob> truths) {
 		this.reset(truths);
 		Set<Dob> result = Sets.newHashSet();
-		while (this.hasMore()) result.addAll(this.proveNext());
+		while (this.hasMore()) result.addAll(this.workers == null ? this.proveNext() : this.proveLevel());
 		return result;
 	}
 	
 	public void clear() {
 		this.truths.clear();
 		this.pendingRules.clear();
-		this.cachet.formToGrounds.clear();
+		this.cachet.clearGrounds();
+		this.stamps.clear();
+		this.fired.clear();
+		this.clock = 0;
+		
+		this.primed = false;
+		this.base.clear();
+		this.derived.clear();
+		this.produced.clear();
+		this.dirty.clear();
+	}
+	
+	/**
+	 * Groups the rules into the strongly connected components of
+	 * the rule graph in topological order. A rule is recursive on
+	 * its own if it may generate its own body.
+	 */
+	private void groupComponents() {
+		Set<Rule> grouped = Sets.newHashSet();
+		for (Set<Rule> cycle : Topper.stronglyConnected(rta.ruleToGenRule)) {
+			if (cycle.size() < 2) continue;
+			grouped.addAll(cycle);
+			components.add(Lists.newArrayList(cycle));
+		}
+		for (Rule rule : rta.allRules) {
+			if (!grouped.contains(rule)) components.add(Lists.newArrayList(rule));
+		}
+		
+		final Map<List<Rule>, Integer> first = Maps.newHashMap();
+		for (List<Rule> component : components) {
+			int min = Integer.MAX_VALUE;
+			for (Rule rule : component) min = Math.min(min, rta.ruleOrder.count(rule));
+			first.put(component, min);
+		}
+		Collections.sort(components, Ordering.natural().onResultOf(Functions.forMap(first)));
+		
+		for (int i = 0; i < components.size(); i++) {
+			List<Rule> component = components.get(i);
+			for (Rule rule : component) componentOf.put(rule, i);
+			levels.add(first.get(component));
+			Rule only = component.get(0);
+			if (component.size() > 1 || rta.ruleToGenRule.containsEntry(only, only)) recursive.add(i);
+		}
+	}
+	
+	/**
+	 * Proves from the given truths by diffing them against the base
+	 * truths of the last call and passing the changes to 
+	 * {@code proveChanges}.
+	 */
+	@Override
+	public Set<Dob> proveIncrementally(Iterable<Dob> truths) {
+		Set<Dob> next = Sets.newHashSet();
+		for (Dob truth : truths) if (truth != null) next.add(this.pool.dobs.submerge(truth));
+		
+		List<Dob> removed = Lists.newArrayList(Sets.difference(this.base, next));
+		List<Dob> added = Lists.newArrayList(Sets.difference(next, this.base));
+		return proveChanges(added, removed);
+	}
+	
+	/**
+	 * Updates what was proven by the last call to this method for a 
+	 * change in the base truths. The first call after the prover is
+	 * cleared proves everything from the added truths. Calls to
+	 * {@code proveAll} or {@code reset} clear the prover.
+	 * @param added base truths that are now true
+	 * @param removed base truths that are no longer true
+	 * @return everything that is derived from the base truths
+	 */
+	public Set<Dob> proveChanges(Iterable<Dob> added, Iterable<Dob> removed) {
+		if (!this.primed) {
+			clear();
+			this.primed = true;
+			for (int i = 0; i < components.size(); i++) dirty.add(i);
+		}
+		
+		for (Dob dob : removed) {
+			dob = this.pool.dobs.submerge(dob);
+			if (this.base.remove(dob) && !this.derived.contains(dob)) retract(dob);
+		}
+		
+		for (Dob dob : added) {
+			dob = this.pool.dobs.submerge(dob);
+			if (this.base.add(dob)) assertTruth(dob);
+		}
+		
+		while (this.dirty.size() > 0) {
+			int next = this.dirty.first();
+			if (this.workers == null || this.recursive.contains(next)) refresh(this.dirty.pollFirst());
+			else refreshLevel();
+		}
+		return Sets.newHashSet(this.derived.elementSet());
+	}
+	
+	private void refresh(int index) {
+		List<Rule> component = this.components.get(index);
+		if (!this.recursive.contains(index)) {
+			Rule rule = component.get(0);
+			reproduce(rule, render(rule, cachet.getSupport(rule)));
+			return;
+		}
+		
+		// Delete everything that the component derived, keeping track of 
+		// the truths that change so that only the net change is passed on
+		this.deferred = Maps.newHashMap();
+		for (Rule rule : component) {
+			for (Dob dob : Colut.get(this.produced, rule, Collections.<Dob>emptySet())) lose(dob);
+			this.produced.remove(rule);
+			this.fired.remove(rule);
+		}
+
+		// Then derive it again semi-naively
+		Set<Rule> pending = Sets.newHashSet(component);
+		while (pending.size() > 0) {
+			Rule rule = Colut.popAny(pending);
+			Set<Dob> output = this.produced.get(rule);
+			if (output == null) this.produced.put(rule, output = Sets.newHashSet());
+			
+			for (Dob dob : fire(rule)) {
+				if (!output.add(dob) || !gain(dob)) continue;
+				for (Rule affected : this.cachet.affectedRules.get(dob)) {
+					Integer other = this.componentOf.get(affected);
+					if (other != null && other == index) pending.add(affected);
+				}
+			}
+		}
+		
+		Map<Dob, Boolean> changed = this.deferred;
+		this.deferred = null;
+		for (Map.Entry<Dob, Boolean> entry : changed.entrySet()) {
+			Dob dob = entry.getKey();
+			if (this.truths.contains(dob) != entry.getValue()) markDirty(dob);
+		}
+	}
+	
+	/**
+	 * Refreshes the dirty components at the lowest dirty level that
+	 * are not recursive, rendering them on the workers.
+	 */
+	private void refreshLevel() {
+		int level = this.levels.get(this.dirty.first());
+		ListMultimap<Rule, Multimap<Atom, Dob>> jobs = LinkedListMultimap.create();
+		for (Iterator<Integer> iterator = this.dirty.iterator(); iterator.hasNext();) {
+			int index = iterator.next();
+			if (this.levels.get(index) != level) break;
+			if (this.recursive.contains(index)) continue;
+			
+			iterator.remove();
+			Rule rule = this.components.get(index).get(0);
+			jobs.put(rule, cachet.getSupport(rule));
+		}
+		
+		Map<Rule, Set<Dob>> rendered = renderAll(jobs);
+		for (Rule rule : jobs.keySet()) reproduce(rule, rendered.get(rule));
+	}
+	
+	/**
+	 * Replaces the output of a rule that is not recursive.
+	 * @param rule
+	 * @param heads
+	 */
+	private void reproduce(Rule rule, Set<Dob> heads) {
+		Set<Dob> last = Colut.get(this.produced, rule, Collections.<Dob>emptySet());
+		this.produced.put(rule, heads);
+		for (Dob dob : Sets.difference(last, heads)) lose(dob);
+		for (Dob dob : Sets.difference(heads, last)) gain(dob);
+	}
+	
+	/**
+	 * @param dob
+	 * @return true if this made the dob true
+	 */
+	private boolean gain(Dob dob) {
+		this.derived.add(dob);
+		return assertTruth(dob);
+	}
+	
+	private void lose(Dob dob) {
+		this.derived.remove(dob);
+		if (!this.derived.contains(dob) && !this.base.contains(dob)) retract(dob);
+	}
+	
+	private boolean assertTruth(Dob dob) {
+		if (!this.storeTruth(dob)) return false;
+		this.stamps.put(dob, this.clock++);
+		markDirty(dob);
+		return true;
+	}
+	
+	private void retract(Dob dob) {
+		if (!this.removeTruth(dob)) return;
+		this.stamps.remove(dob);
+		markDirty(dob);
+	}
+	
+	/**
+	 * Marks the components that may use the given dob for refreshing.
+	 * While a recursive component is refreshing, this only remembers 
+	 * whether the dob was true before.
+	 */
+	private void markDirty(Dob dob) {
+		if (this.deferred != null) {
+			if (!this.deferred.containsKey(dob)) this.deferred.put(dob, !this.truths.contains(dob));
+			return;
+		}
+		
+		for (Rule rule : this.cachet.affectedRules.get(dob)) {
+			Integer index = this.componentOf.get(rule);
+			if (index != null) this.dirty.add(index);
+		}
 	}
 
 	/**
@@ -80,6 +366,7 @@ public class StratifiedForward extends StratifiedProver {
 		boolean added = this.storeTruth(dob);
 		if (!added) return dob;
 		
+		this.stamps.put(dob, this.clock++);
 		queueRules(this.cachet.affectedRules.get(dob));
 		return dob;
 	}
@@ -95,15 +382,35 @@ public class StratifiedForward extends StratifiedProver {
 		}
 	}
 
+	/**
+	 * Makes {@code proveAll} and {@code proveChanges} render the rules 
+	 * of a level on the given workers. Rules that share a renderer are 
+	 * rendered by the same worker. The renderers that the prover has and
+	 * the ones that it makes from now on also get the workers, so a single
+	 * large rule can be split across them. Renderers that are given with 
+	 * {@code useRenderer} afterwards keep their own. Passing null renders 
+	 * everything on the calling thread again.
+	 * @param workers
+	 */
+	public void useWorkers(ForkJoinPool workers) {
+		Preconditions.checkArgument(workers == null || pool.concurrent, 
+			"Only provers with concurrent pools can render in parallel!");
+		this.workers = workers;
+		synchronized (this.renderers) {
+			for (Renderer renderer : this.renderers.stored.values()) renderer.useWorkers(workers);
+		}
+	}
+	
+	@Override protected Renderer newRenderer(Rule rule) {
+		return super.newRenderer(rule).useWorkers(this.workers);
+	}
+	
 	public boolean hasMore() { return this.pendingRules.size() > 0; }
 	
 	public List<Dob> proveNext() {
 		if (!hasMore()) throw new NoSuchElementException();
 		Rule rule = Colut.popAny(this.pendingRules.values());
-		
-		Renderer expander = this.renderers.get(rule);
-		ListMultimap<Atom, Dob> support = cachet.getSupport(rule);
-		Set<Dob> generated = Terra.renderHeads(expander.apply(rule, truths, support, pool), rule, pool);
+		Set<Dob> generated = fire(rule);
 		
 		// Submerge all of the newly generated dobs
 		List<Dob> result = Lists.newArrayListWithCapacity(generated.size());
@@ -115,6 +422,129 @@ public class StratifiedForward extends StratifiedProver {
 		return result;
 	}
 	
+	/**
+	 * Fires every pending rule at the lowest level together. Nothing
+	 * that they generate is stored until all of them are rendered.
+	 * @return
+	 */
+	public List<Dob> proveLevel() {
+		if (!hasMore()) throw new NoSuchElementException();
+		List<Rule> ready = Lists.newArrayList(this.pendingRules.removeAll(this.pendingRules.keySet().first()));
+		
+		ListMultimap<Rule, Multimap<Atom, Dob>> jobs = LinkedListMultimap.create();
+		for (Rule rule : ready) jobs.putAll(rule, getSupports(rule));
+		Map<Rule, Set<Dob>> rendered = renderAll(jobs);
+		
+		List<Dob> result = Lists.newArrayList();
+		for (Rule rule : ready) {
+			for (Dob dob : Colut.get(rendered, rule, Collections.<Dob>emptySet())) result.add(queueTruth(dob));
+		}
+		return result;
+	}
+	
+	private Set<Dob> fire(Rule rule) { return render(rule, getSupports(rule)); }
+	
+	/**
+	 * @param rule
+	 * @return everything if the rule has not fired yet and the 
+	 * semi-naive supports since its last firing otherwise
+	 */
+	private List<Multimap<Atom, Dob>> getSupports(Rule rule) {
+		ListMultimap<Atom, Dob> support = cachet.getSupport(rule);
+		Integer last = this.fired.put(rule, this.clock);
+		if (last == null) return Collections.<Multimap<Atom, Dob>>singletonList(support);
+		return getDeltaSupports(rule, support, last);
+	}
+	
+	private Set<Dob> render(Rule rule, Multimap<Atom, Dob> support) {
+		Renderer expander = this.renderers.get(rule);
+		return Terra.renderUnifiedHeads(expander.render(rule, truths, support, pool), rule, pool);
+	}
+	
+	private Set<Dob> render(Rule rule, Iterable<Multimap<Atom, Dob>> supports) {
+		Set<Dob> generated = Sets.newHashSet();
+		for (Multimap<Atom, Dob> support : supports) generated.addAll(render(rule, support));
+		return generated;
+	}
+	
+	/**
+	 * Renders every rule over each of its supports, in parallel if there
+	 * are workers. Renderers keep state between calls, so the rules that
+	 * share a renderer are rendered by the same task.
+	 * @param jobs
+	 * @return
+	 */
+	private Map<Rule, Set<Dob>> renderAll(ListMultimap<Rule, Multimap<Atom, Dob>> jobs) {
+		Map<Rule, Set<Dob>> result = Maps.newHashMap();
+		Multimap<Renderer, Rule> groups = LinkedListMultimap.create();
+		for (Rule rule : jobs.keySet()) groups.put(this.renderers.get(rule), rule);
+		
+		if (this.workers == null || groups.keySet().size() < 2) {
+			for (Rule rule : jobs.keySet()) result.put(rule, render(rule, jobs.get(rule)));
+			return result;
+		}
+		
+		List<Callable<Map<Rule, Set<Dob>>>> tasks = Lists.newArrayList();
+		for (Collection<Rule> group : groups.asMap().values()) {
+			final ListMultimap<Rule, Multimap<Atom, Dob>> work = ArrayListMultimap.create();
+			for (Rule rule : group) work.putAll(rule, jobs.get(rule));
+			tasks.add(new Callable<Map<Rule, Set<Dob>>>() {
+				@Override public Map<Rule, Set<Dob>> call() {
+					Map<Rule, Set<Dob>> rendered = Maps.newHashMap();
+					for (Rule rule : work.keySet()) rendered.put(rule, render(rule, work.get(rule)));
+					return rendered;
+				}
+			});
+		}
+		
+		try {
+			for (Future<Map<Rule, Set<Dob>>> future : this.workers.invokeAll(tasks)) result.putAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw Throwables.propagate(e);
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		}
+		return result;
+	}
+	
+	/**
+	 * Splits the support for a rule into the semi-naive supports for
+	 * a firing. Truths that were never stamped count as old.
+	 * @param rule
+	 * @param support
+	 * @param last the stamp of the first truth that is new
+	 * @return one support for each positive atom with new grounds
+	 */
+	private List<Multimap<Atom, Dob>> getDeltaSupports(Rule rule, 
+			ListMultimap<Atom, Dob> support, int last) {
+		ListMultimap<Atom, Dob> old = ArrayListMultimap.create(), fresh = ArrayListMultimap.create();
+		for (Atom atom : rule.body) {
+			for (Dob ground : support.get(atom)) {
+				Integer stamp = this.stamps.get(ground);
+				if (stamp != null && stamp >= last) fresh.put(atom, ground);
+				else old.put(atom, ground);
+			}
+		}
+		
+		List<Multimap<Atom, Dob>> result = Lists.newArrayList();
+		for (int i = 0; i < rule.body.size(); i++) {
+			Atom pivot = rule.body.get(i);
+			if (!fresh.containsKey(pivot)) continue;
+			
+			ListMultimap<Atom, Dob> delta = ArrayListMultimap.create();
+			for (int j = 0; j < rule.body.size() && delta != null; j++) {
+				Atom atom = rule.body.get(j);
+				if (j > i) delta.putAll(atom, support.get(atom));
+				else if (j == i) delta.putAll(atom, fresh.get(atom));
+				else if (atom.truth && !old.containsKey(atom)) delta = null;
+				else delta.putAll(atom, old.get(atom));
+			}
+			if (delta != null) result.add(delta);
+		}
+		return result;
+	}
+	
 	public static Iterator<List<Dob>> asIterator(final StratifiedForward prover) {
 		return new Iterator<List<Dob>>() {
 			@Override public boolean hasNext() { return prover.hasMore(); }
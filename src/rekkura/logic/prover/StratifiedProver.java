@@ -1,18 +1,21 @@
 package rekkura.logic.prover;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 import rekkura.logic.algorithm.Renderer;
 import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
 import rekkura.logic.structure.Cachet;
+import rekkura.logic.structure.DobSet;
 import rekkura.logic.structure.Pool;
 import rekkura.logic.structure.Ruletta;
 import rekkura.util.Cache;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 /**
@@ -29,15 +32,35 @@ import com.google.common.collect.Sets;
 public abstract class StratifiedProver {
 	public final Ruletta rta;
 	public final Cachet cachet;
-	public final Pool pool = new Pool();
-	public final Set<Dob> truths = Sets.newHashSet();
+	public final Pool pool;
+	public final DobSet truths;
 	public final Cache<Rule,Renderer> renderers = Cache.create(new Function<Rule,Renderer>() {
-		@Override public Renderer apply(Rule arg0) { return Renderer.newStandardFailover(); }
+		@Override public Renderer apply(Rule arg0) { return newRenderer(arg0); }
 	});
 	
 	public abstract Set<Dob> proveAll(Iterable<Dob> truths);
+	
+	/**
+	 * Proves the same thing as {@code proveAll} but may reuse what 
+	 * was proven for the truths of the previous call to this method.
+	 * By default this proves everything from scratch.
+	 * @param truths
+	 * @return
+	 */
+	public Set<Dob> proveIncrementally(Iterable<Dob> truths) { return proveAll(truths); }
+	public abstract void clear();
+	
+	/**
+	 * @return a prover for another thread that shares this prover's pool, 
+	 * rules and forms but keeps its own truths. The pool must be concurrent.
+	 */
+	public abstract StratifiedProver fork();
 
-	public StratifiedProver(Collection<Rule> rules) {
+	public StratifiedProver(Collection<Rule> rules) { this(rules, new Pool()); }
+	
+	public StratifiedProver(Collection<Rule> rules, Pool pool) {
+		this.pool = pool;
+		this.truths = DobSet.create(pool);
 		this.rta = Ruletta.create(rules, pool);
 		for (Rule rule : rta.allRules) {
 			Preconditions.checkArgument(rule.head.truth, "Rules must have positive heads!");
@@ -45,6 +68,50 @@ public abstract class StratifiedProver {
 		
 		this.cachet = new Cachet(rta, pool);
 	}
+	
+	protected StratifiedProver(StratifiedProver shared) {
+		Preconditions.checkArgument(shared.pool.concurrent, "Only provers with concurrent pools can be forked!");
+		this.pool = shared.pool;
+		this.truths = DobSet.create(pool);
+		this.rta = shared.rta;
+		this.cachet = new Cachet(shared.cachet);
+	}
+
+	/**
+	 * Makes the prover render the given rule with the given renderer
+	 * from now on. The rule must be one of the rules in the ruletta.
+	 * @param rule
+	 * @param renderer
+	 */
+	public void useRenderer(Rule rule, Renderer renderer) {
+		Preconditions.checkArgument(rta.allRules.contains(rule), "Rule is not in the ruletta!");
+		this.renderers.stored.put(rule, renderer);
+	}
+	
+	/**
+	 * @param rule
+	 * @return the renderer for a rule that was not given one
+	 */
+	protected Renderer newRenderer(Rule rule) { return Renderer.newIndexedFailover(cachet); }
+	
+	/**
+	 * @return the renderer that each rendered rule is using. Adaptive 
+	 * renderers report the child that they have settled on for the rule.
+	 */
+	public Map<Rule, Renderer> getRendererChoices() {
+		Map<Rule, Renderer> result = Maps.newHashMap();
+		synchronized (this.renderers) {
+			for (Map.Entry<Rule, Renderer> entry : this.renderers.stored.entrySet()) {
+				Rule rule = entry.getKey();
+				Renderer renderer = entry.getValue();
+				if (renderer instanceof Renderer.Adaptive) {
+					renderer = ((Renderer.Adaptive)renderer).getChoice(rule);
+				}
+				if (renderer != null) result.put(rule, renderer);
+			}
+		}
+		return result;
+	}
 
 	/**
 	 * This stores the given dob after submerging it.
@@ -70,6 +137,29 @@ public abstract class StratifiedProver {
 		return added;
 	}
 	
+	/**
+	 * This undoes {@code storeTruth}.
+	 * @param dob
+	 * @return
+	 */
+	public boolean removeTruth(Dob dob) {
+		dob = this.pool.dobs.submerge(dob);
+		boolean removed = truths.remove(dob);
+		this.cachet.removeGround(dob);
+		return removed;
+	}
+	
+	/**
+	 * This clears the prover and then drops the transient generation
+	 * of the pool along with the cached entries that refer to it. Forks
+	 * that share the pool must be cleared and idle.
+	 */
+	public void reclaim() {
+		clear();
+		this.pool.dobs.reclaim();
+		this.cachet.reclaim();
+	}
+	
 	public boolean storeTruths(Iterable<Dob> dobs) {
 		boolean result = false;
 		for (Dob dob : dobs) result |= storeTruth(dob);
@@ -80,17 +170,28 @@ public abstract class StratifiedProver {
 		for (Dob dob : truths) preserveTruth(dob);
 	}
 		
-	public static interface Factory { StratifiedProver create(Collection<Rule> rules); }
+	public static interface Factory { 
+		StratifiedProver create(Collection<Rule> rules);
+		StratifiedProver create(Collection<Rule> rules, Pool pool);
+	}
 
 	public static Factory FORWARD_FACTORY = new Factory() {
 		@Override public StratifiedProver create(Collection<Rule> rules) {
 			return new StratifiedForward(rules);
 		}
+
+		@Override public StratifiedProver create(Collection<Rule> rules, Pool pool) {
+			return new StratifiedForward(rules, pool);
+		}
 	};
 	
 	public static Factory BACKWARD_FACTORY = new Factory() {
 		@Override public StratifiedProver create(Collection<Rule> rules) {
 			return new StratifiedBackward(rules);
 		}
+
+		@Override public StratifiedProver create(Collection<Rule> rules, Pool pool) {
+			return new StratifiedBackward(rules, pool);
+		}
 	};
 }
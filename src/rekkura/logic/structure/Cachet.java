@@ -1,6 +1,7 @@
 package rekkura.logic.structure;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import rekkura.logic.algorithm.Unifier;
@@ -12,6 +13,7 @@ import rekkura.util.Colut;
 import rekkura.util.OtmUtil;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
 import com.google.common.collect.*;
 
 /**
@@ -75,6 +77,16 @@ public class Cachet {
 	 */
 	public final Multimap<Dob, Dob> formToGrounds = HashMultimap.create();
 
+	/**
+	 * These are secondary indexes on the grounds of a form keyed by
+	 * the node found at some path in the ground. An index is built 
+	 * the first time it is asked for and is kept up to date by 
+	 * {@code storeGroundAt} after that. Indexes may be asked for by
+	 * renderers on several threads, but grounds are only stored while
+	 * nothing is rendering.
+	 */
+	private final Table<Dob, List<Integer>, Multimap<Dob, Dob>> argumentIndexes = HashBasedTable.create();
+
 	public final Ruletta rta;
 
 	public Cachet(Ruletta rta, Pool pool) {
@@ -84,6 +96,37 @@ public class Cachet {
 		for (Atom atom : Rule.asAtomIterator(rta.allRules)) { allTerms.add(atom.dob); }
 		this.fortre = new Fortre(allTerms, rta.homvar, pool);
 	}
+	
+	/**
+	 * This shares everything with the given cachet except for the
+	 * grounds, so that provers on other threads can use the same forms.
+	 * @param shared
+	 */
+	public Cachet(Cachet shared) {
+		this.rta = shared.rta;
+		this.fortre = shared.fortre;
+		this.canonicalForms = shared.canonicalForms;
+		this.canonicalSpines = shared.canonicalSpines;
+		this.spines = shared.spines;
+		this.canonicalRules = shared.canonicalRules;
+		this.affectedRules = shared.affectedRules;
+	}
+
+	/**
+	 * The caches that are keyed on arbitrary dobs keep the transient
+	 * generation of the pool reachable, so this drops their entries for 
+	 * dobs that the pool no longer knows about. Forms and rules are 
+	 * submerged before the pool is marked, so their caches are kept.
+	 */
+	public void reclaim() {
+		Predicate<Dob> submerged = new Predicate<Dob>() {
+			@Override public boolean apply(Dob dob) { return fortre.pool.dobs.isSubmerged(dob); }
+		};
+		
+		this.canonicalForms.retainKeys(submerged);
+		this.spines.retainKeys(submerged);
+		this.affectedRules.retainKeys(submerged);
+	}
 
 	public List<Dob> getUnifiableForms(Dob dob) {
 		List<Dob> result = Lists.newArrayList();
@@ -105,7 +148,68 @@ public class Cachet {
 	}
 
 	public void storeGroundAt(Dob ground, Dob body) {
-		formToGrounds.put(body, ground);
+		if (!formToGrounds.put(body, ground)) return;
+		for (Map.Entry<List<Integer>, Multimap<Dob, Dob>> entry : argumentIndexes.row(body).entrySet()) {
+			index(ground, entry.getKey(), entry.getValue());
+		}
+	}
+	
+	public void removeGround(Dob ground) {
+		removeGroundAt(ground, canonicalForms.get(ground));
+	}
+
+	/**
+	 * Undoes {@code storeGroundAt}, keeping the argument indexes
+	 * of the form in step.
+	 * @param ground
+	 * @param body
+	 */
+	public void removeGroundAt(Dob ground, Dob body) {
+		if (!formToGrounds.remove(body, ground)) return;
+		for (Map.Entry<List<Integer>, Multimap<Dob, Dob>> entry : argumentIndexes.row(body).entrySet()) {
+			Dob node = nodeAt(ground, entry.getKey());
+			if (node != null) entry.getValue().remove(node, ground);
+		}
+	}
+	
+	/**
+	 * Forgets all of the grounds. Argument indexes stay registered
+	 * so that they keep being maintained for the next set of grounds.
+	 */
+	public void clearGrounds() {
+		formToGrounds.clear();
+		for (Multimap<Dob, Dob> index : argumentIndexes.values()) index.clear();
+	}
+	
+	/**
+	 * @param form
+	 * @param path
+	 * @return the argument index of the grounds stored at the form
+	 */
+	public Multimap<Dob, Dob> getArgumentIndex(Dob form, List<Integer> path) {
+		synchronized (argumentIndexes) {
+			Multimap<Dob, Dob> result = argumentIndexes.get(form, path);
+			if (result == null) {
+				result = HashMultimap.create();
+				for (Dob ground : formToGrounds.get(form)) index(ground, path, result);
+				argumentIndexes.put(form, ImmutableList.copyOf(path), result);
+			}
+			return result;
+		}
+	}
+	
+	private static void index(Dob ground, List<Integer> path, Multimap<Dob, Dob> index) {
+		Dob node = nodeAt(ground, path);
+		if (node != null) index.put(node, ground);
+	}
+	
+	private static Dob nodeAt(Dob ground, List<Integer> path) {
+		Dob node = ground;
+		for (int pos : path) {
+			if (pos >= node.size()) return null;
+			node = node.at(pos);
+		}
+		return node;
 	}
 
 	/**
@@ -118,7 +222,32 @@ public class Cachet {
 		return OtmUtil.valueIterable(formToGrounds, spines.get(dob));
 	}
 
-
+	/**
+	 * This narrows the ground candidates of the body term to the ones
+	 * that have the given node at the given path. The node is compared
+	 * by identity, so it should be submerged.
+	 * @param dob
+	 * @param path
+	 * @param node
+	 * @return
+	 */
+	public Iterable<Dob> getGroundCandidates(Dob dob, List<Integer> path, Dob node) {
+		List<Iterable<Dob>> result = Lists.newArrayList();
+		for (Multimap<Dob, Dob> index : getArgumentIndexes(dob, path)) result.add(index.get(node));
+		return Iterables.concat(result);
+	}
+	
+	/**
+	 * @param dob
+	 * @param path
+	 * @return the argument indexes of the forms in the spine of the body term
+	 */
+	public List<Multimap<Dob, Dob>> getArgumentIndexes(Dob dob, List<Integer> path) {
+		List<Multimap<Dob, Dob>> result = Lists.newArrayList();
+		for (Dob form : spines.get(dob)) result.add(getArgumentIndex(form, path));
+		return result;
+	}
+	
 	/**
 	 * Returns a list that contains the assignment domain of each positive
 	 * body term in the given rule assuming that we want to expand the given
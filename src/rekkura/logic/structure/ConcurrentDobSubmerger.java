@@ -0,0 +1,185 @@
+package rekkura.logic.structure;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import rekkura.logic.format.LogicFormat;
+import rekkura.logic.model.Dob;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This is the lock free version of the {@link DobSubmerger} that 
+ * concurrent pools use. When threads race to submerge equivalent 
+ * dobs, the first one published to the table wins. <br>
+ * A dob gets its id before it is published, so every dob that can
+ * be found in the table already has one. Ids are dense except for
+ * the occasional id lost to a race. Clearing, marking and reclaiming
+ * are not safe while other threads are submerging.
+ * @author ptpham
+ *
+ */
+public class ConcurrentDobSubmerger extends DobSubmerger {
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int MAX_CHUNKS = 1 << 16;
+	
+	private final ConcurrentMap<Key, Dob> table = new ConcurrentHashMap<Key, Dob>();
+	private final ConcurrentMap<Dob, Integer> ids = new ConcurrentHashMap<Dob, Integer>();
+	private final AtomicInteger next = new AtomicInteger();
+	private int marked;
+	private volatile AtomicReferenceArray<AtomicReferenceArray<Dob>> chunks = 
+		new AtomicReferenceArray<AtomicReferenceArray<Dob>>(MAX_CHUNKS);
+
+	public ConcurrentDobSubmerger(LogicFormat fmt) { super(fmt); }
+
+	@Override
+	public void clear() {
+		this.table.clear();
+		this.ids.clear();
+		this.chunks = new AtomicReferenceArray<AtomicReferenceArray<Dob>>(MAX_CHUNKS);
+		this.next.set(0);
+		this.marked = 0;
+	}
+	
+	@Override public void mark() { this.marked = next.get(); }
+	
+	@Override
+	public void reclaim() {
+		for (Iterator<Dob> it = table.values().iterator(); it.hasNext();) {
+			Integer id = ids.get(it.next());
+			if (id == null || id >= marked) it.remove();
+		}
+		
+		for (Iterator<Integer> it = ids.values().iterator(); it.hasNext();) {
+			if (it.next() >= marked) it.remove();
+		}
+		
+		for (int id = marked; id < next.get(); id++) {
+			AtomicReferenceArray<Dob> chunk = chunks.get(id >>> CHUNK_BITS);
+			if (chunk != null) chunk.set(id & (CHUNK_SIZE - 1), null);
+		}
+		this.next.set(marked);
+	}
+	
+	@Override public int marked() { return this.marked; }
+	
+	@Override
+	public Dob submerge(Dob original) {
+		if (original == null) return null;
+		Dob existing = table.get(new Key(original));
+		if (existing != null) return existing;
+		
+		boolean changed = false;
+		Dob[] children = new Dob[original.size()];
+		for (int i = 0; i < children.length; i++) {
+			Dob child = original.at(i);
+			Dob submerged = submerge(child);
+			if (child != submerged) changed = true;
+			children[i] = submerged;
+		}
+		
+		Dob result = changed ? new Dob(children) : original;
+		return publish(result);
+	}
+	
+	/**
+	 * The lookup goes through a key over the children, so
+	 * the node is only built if it has not been seen before.
+	 */
+	@Override
+	public Dob submergeNode(Dob[] children, int from, int count) {
+		Dob existing = table.get(new Key(children, from, count));
+		if (existing != null) return existing;
+		
+		Dob[] copied = new Dob[count];
+		for (int i = 0; i < count; i++) copied[i] = submerge(children[from + i]);
+		return publish(new Dob(copied));
+	}
+	
+	@Override
+	public int id(Dob dob) {
+		if (dob == null) return -1;
+		Integer id = ids.get(dob);
+		return id == null ? -1 : id;
+	}
+	
+	/**
+	 * Gives the candidate an id and then tries to put it in the table.
+	 * If an equivalent dob got there first, the id is given up.
+	 */
+	private Dob publish(Dob candidate) {
+		int fresh = next.getAndIncrement();
+		set(fresh, candidate);
+		Integer prior = ids.putIfAbsent(candidate, fresh);
+		int id = fresh;
+		if (prior != null) {
+			set(fresh, null);
+			id = prior;
+		}
+		
+		Dob existing = table.putIfAbsent(new Key(candidate), candidate);
+		if (existing == null || existing == candidate) return candidate;
+		if (ids.remove(candidate, id)) set(id, null);
+		return existing;
+	}
+	
+	@Override
+	public Dob fromId(int id) {
+		Preconditions.checkElementIndex(id, size());
+		AtomicReferenceArray<Dob> chunk = chunks.get(id >>> CHUNK_BITS);
+		return chunk == null ? null : chunk.get(id & (CHUNK_SIZE - 1));
+	}
+	
+	@Override public int size() { return next.get(); }
+	
+	private void set(int id, Dob dob) {
+		int index = id >>> CHUNK_BITS;
+		Preconditions.checkState(index < MAX_CHUNKS, "Out of dob ids!");
+		AtomicReferenceArray<Dob> chunk = chunks.get(index);
+		if (chunk == null) {
+			chunks.compareAndSet(index, null, new AtomicReferenceArray<Dob>(CHUNK_SIZE));
+			chunk = chunks.get(index);
+		}
+		chunk.set(id & (CHUNK_SIZE - 1), dob);
+	}
+	
+	/**
+	 * Keys compare children by identity, like the serial table. A key
+	 * over children only probes the table and is never stored in it.
+	 */
+	private static class Key {
+		private final Dob dob;
+		private final Dob[] children;
+		private final int from, count, hash;
+		
+		private Key(Dob dob) {
+			this.dob = dob;
+			this.children = null;
+			this.from = this.count = 0;
+			this.hash = mix(dob.structuralHash());
+		}
+		
+		private Key(Dob[] children, int from, int count) {
+			this.dob = null;
+			this.children = children;
+			this.from = from;
+			this.count = count;
+			this.hash = hashNode(children, from, count);
+		}
+		
+		@Override public int hashCode() { return hash; }
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key other = (Key) obj;
+			if (other.dob == null) return dob != null && matches(dob, other.children, other.from, other.count);
+			if (dob == null) return matches(other.dob, children, from, count);
+			return matches(dob, other.dob);
+		}
+	}
+}
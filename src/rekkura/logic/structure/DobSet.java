@@ -0,0 +1,103 @@
+package rekkura.logic.structure;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import rekkura.logic.model.Dob;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A set of submerged dobs backed by a bitset over the ids that
+ * the submerger hands out. Adding and removing do not allocate, so
+ * this is cheaper than a hash set for the truth sets that the provers
+ * fill and clear constantly. Only dobs submerged in the backing
+ * submerger may be added.
+ * @author ptpham
+ *
+ */
+public class DobSet extends AbstractSet<Dob> {
+	public final DobSubmerger dobs;
+	private final BitSet bits = new BitSet();
+	private int size;
+
+	public DobSet(DobSubmerger dobs) { this.dobs = dobs; }
+
+	public static DobSet create(Pool pool) { return new DobSet(pool.dobs); }
+
+	@Override
+	public boolean add(Dob dob) {
+		int id = dobs.id(dob);
+		Preconditions.checkArgument(id >= 0, "Dob must be submerged before it can be added!");
+		return addId(id);
+	}
+
+	public boolean addId(int id) {
+		if (bits.get(id)) return false;
+		bits.set(id);
+		size++;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object obj) {
+		if (!(obj instanceof Dob)) return false;
+		return containsId(dobs.id((Dob)obj));
+	}
+
+	public boolean containsId(int id) { return id >= 0 && bits.get(id); }
+
+	@Override
+	public boolean remove(Object obj) {
+		if (!(obj instanceof Dob)) return false;
+		return removeId(dobs.id((Dob)obj));
+	}
+
+	public boolean removeId(int id) {
+		if (!containsId(id)) return false;
+		bits.clear(id);
+		size--;
+		return true;
+	}
+
+	@Override public int size() { return this.size; }
+
+	@Override
+	public void clear() {
+		this.bits.clear();
+		this.size = 0;
+	}
+
+	/**
+	 * @return the ids of the dobs in this set. This is a view, so
+	 * it should not be modified.
+	 */
+	public BitSet ids() { return this.bits; }
+
+	@Override
+	public Iterator<Dob> iterator() {
+		return new Iterator<Dob>() {
+			int next = bits.nextSetBit(0);
+			int last = -1;
+
+			@Override public boolean hasNext() { return next >= 0; }
+
+			@Override
+			public Dob next() {
+				if (next < 0) throw new NoSuchElementException();
+				last = next;
+				next = bits.nextSetBit(next + 1);
+				return dobs.fromId(last);
+			}
+
+			@Override
+			public void remove() {
+				Preconditions.checkState(last >= 0);
+				removeId(last);
+				last = -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,127 @@
+package rekkura.logic.structure;
+
+import rekkura.logic.format.LogicFormat;
+import rekkura.logic.model.Dob;
+import rekkura.util.Submerger;
+
+/**
+ * A dob submerger hash-conses dobs structurally instead of going
+ * through their string representations. A dob is keyed on its name
+ * and the identities of its (already submerged) children, and hashed
+ * on its cached structural hash, so
+ * submerging a new node costs time proportional to its arity rather
+ * than to the size of the whole tree.
+ * <br>
+ * Every submerged dob is also given a dense integer id when it is
+ * submerged. Ids are only valid until the next {@code clear}. Asking
+ * for an id never changes anything.
+ * <br>
+ * Dobs submerged before the last {@code mark} are permanent. Everything
+ * after it is transient and is dropped by {@code reclaim}, so a long 
+ * running machine can let go of the states it has rendered.
+ * @author ptpham
+ *
+ */
+public abstract class DobSubmerger extends Submerger<Dob> {
+	private final LogicFormat fmt;
+
+	protected DobSubmerger(LogicFormat fmt) { this.fmt = fmt; }
+
+	@Override public Dob fromString(String s) { return fmt.dobFromString(s); }
+	@Override public String toString(Dob u) { return fmt.toString(u); }
+	@Override public Dob process(Dob u) { return submerge(u); }
+
+	/**
+	 * If the children of the original are already submerged, 
+	 * the lookup on the original will find its representative.
+	 * Otherwise the children are submerged first and the lookup 
+	 * is attempted again.
+	 */
+	@Override public abstract Dob submerge(Dob original);
+
+	@Override
+	public Dob submergeString(String stringed) {
+		return submerge(fromString(stringed));
+	}
+
+	/**
+	 * Submerges the composite dob with the given children. If the 
+	 * children are submerged and the dob has been seen before, this 
+	 * is a lookup that does not build the dob.
+	 * @param children
+	 * @param from the position of the first child in the array
+	 * @param count the number of children
+	 * @return
+	 */
+	public abstract Dob submergeNode(Dob[] children, int from, int count);
+
+	/**
+	 * @param dob
+	 * @return the id of the given dob if it is a submerged dob
+	 * of this submerger and -1 otherwise.
+	 */
+	public abstract int id(Dob dob);
+
+	public abstract Dob fromId(int id);
+
+	public boolean isSubmerged(Dob dob) { return id(dob) >= 0; }
+
+	/**
+	 * @return an upper bound on the submerged ids. All ids are less than this.
+	 */
+	public abstract int size();
+
+	/**
+	 * Makes every dob submerged so far permanent.
+	 */
+	public abstract void mark();
+
+	/**
+	 * @return the number of permanent dobs. These have the lowest ids.
+	 */
+	public abstract int marked();
+
+	/**
+	 * Forgets every dob submerged since the last {@code mark}. Permanent 
+	 * dobs keep their ids and the ids of forgotten dobs are handed out 
+	 * again, so anything that holds transient dobs by id must be cleared
+	 * first. A forgotten dob that is still held elsewhere can be submerged
+	 * again and will be its own representative.
+	 */
+	public abstract void reclaim();
+
+	protected static int mix(int hash) { return hash ^ (hash >>> 16); }
+
+	/**
+	 * @return the hash that {@code mix} gives the structural hash of
+	 * the composite dob with the given children
+	 */
+	protected static int hashNode(Dob[] children, int from, int count) {
+		int hash = 0;
+		for (int i = from; i < from + count; i++) hash = 31 * hash + children[i].structuralHash();
+		return mix(hash);
+	}
+
+	/**
+	 * Children are compared by identity because everything
+	 * in the table is made of submerged dobs.
+	 */
+	protected static boolean matches(Dob first, Dob second) {
+		if (first == second) return true;
+		if (first.nodeCount() != second.nodeCount()) return false;
+		if (first.size() != second.size()) return false;
+		if (!first.name.equals(second.name)) return false;
+		for (int i = 0; i < first.size(); i++) {
+			if (first.at(i) != second.at(i)) return false;
+		}
+		return true;
+	}
+
+	protected static boolean matches(Dob dob, Dob[] children, int from, int count) {
+		if (dob.size() != count || !dob.name.isEmpty()) return false;
+		for (int i = 0; i < count; i++) {
+			if (dob.at(i) != children[from + i]) return false;
+		}
+		return true;
+	}
+}
@@ -159,7 +159,7 @@ public class Fortre {
 		Multimap<Dob, Dob> symmetricEdges = HashMultimap.create();
 		for (int i = 0; i < allForms.size(); i++) {
 			Dob first = allForms.get(i);
-			if (Colut.containsNone(first.fullIterable(), pool.allVars)) continue;
+			if (first.containsNone(pool.allVars)) continue;
 			for (int j = i + 1; j < allForms.size(); j++) {
 				Dob second = allForms.get(j);
 				if (first == second) continue;
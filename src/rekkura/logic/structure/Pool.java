@@ -10,8 +10,9 @@ import rekkura.logic.format.StandardFormat;
 import rekkura.logic.model.Atom;
 import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
+import rekkura.logic.model.Template;
+import rekkura.logic.model.Unification;
 import rekkura.util.CachingSupplier;
-import rekkura.util.Colut;
 import rekkura.util.Submerger;
 
 import com.google.common.base.Preconditions;
@@ -29,6 +30,10 @@ import com.google.common.collect.*;
  * are not noted as variables in the rules it maintains. By making
  * this assumption, it becomes unnecessary to recompute the union
  * of variable sets.
+ * <br>
+ * A concurrent pool can be shared by provers on different threads. 
+ * Submersion is thread safe there, but rules and variables should 
+ * be added to the pool before it is shared.
  * 
  * @author ptpham
  *
@@ -38,13 +43,25 @@ public class Pool {
 	public final CachingSupplier<Dob> constgen = new Dob.PrefixedSupplier("PGC");
 	
 	public final LogicFormat fmt = new StandardFormat();
-	public final Submerger<Dob> dobs = createDobSubmerger();
-	public final Submerger<Atom> atoms = createAtomSubmerger();
-	public final Submerger<Rule> rules = createRuleSubmerger();
+	public final boolean concurrent;
+	public final DobSubmerger dobs;
+	public final Submerger<Atom> atoms;
+	public final Submerger<Rule> rules;
 	public final Set<Dob> allVars = vargen.created;
 	
-	private final Map<Class<?>, Submerger<?>> submergers = 
-		ImmutableMap.of(Dob.class, dobs, Atom.class, atoms, Rule.class, rules);
+	private final Map<Class<?>, Submerger<?>> submergers;
+	
+	public Pool() { this(false); }
+	
+	private Pool(boolean concurrent) {
+		this.concurrent = concurrent;
+		this.dobs = createDobSubmerger();
+		this.atoms = createAtomSubmerger();
+		this.rules = createRuleSubmerger();
+		this.submergers = ImmutableMap.of(Dob.class, dobs, Atom.class, atoms, Rule.class, rules);
+	}
+	
+	public static Pool createConcurrent() { return new Pool(true); }
 	
 	public Map<Dob, Dob> submergeUnify(Map<Dob, Dob> unify) {
 		Map<Dob, Dob> result = Maps.newHashMap();
@@ -84,7 +101,7 @@ public class Pool {
 	public static Set<Rule> rulesWithHeadContainingAny(Set<Dob> targets, Iterable<Rule> rules) {
 		Set<Rule> result = Sets.newHashSet();
 		for (Rule rule : rules) {
-			if (Colut.containsAny(rule.head.dob.fullIterable(), targets)) {
+			if (rule.head.dob.containsAny(targets)) {
 				result.add(rule);
 			}
 		}
@@ -92,22 +109,20 @@ public class Pool {
 		return result;
 	}
 	
+	
 	@SuppressWarnings("unchecked")
 	private <U> Submerger<U> getSubmerger(Class<U> cls) {
 		Preconditions.checkArgument(this.submergers.containsKey(cls), "Invalid submersion class target!");
 		return (Submerger<U>)this.submergers.get(cls);
 	}
 	
-	private Submerger<Dob> createDobSubmerger() {
-		return new Submerger<Dob>() {
-			@Override public Dob fromString(String s) { return fmt.dobFromString(s); }
-			@Override public String toString(Dob u) { return fmt.toString(u); }
-			@Override public Dob process(Dob u) { return handleUnseen(u); }
-		};
+	private DobSubmerger createDobSubmerger() {
+		if (concurrent) return new ConcurrentDobSubmerger(fmt);
+		return new SerialDobSubmerger(fmt);
 	}
 
 	private Submerger<Atom> createAtomSubmerger() {
-		return new Submerger<Atom>() {
+		return new Submerger<Atom>(concurrent) {
 			@Override public Atom fromString(String s) { return fmt.atomFromString(s); }
 			@Override public String toString(Atom u) { return fmt.toString(u); }
 			@Override public Atom process(Atom u) { return handleUnseen(u); }
@@ -115,27 +130,13 @@ public class Pool {
 	}
 	
 	private Submerger<Rule> createRuleSubmerger() {
-		return new Submerger<Rule>() {
+		return new Submerger<Rule>(concurrent) {
 			@Override public Rule fromString(String s) { return fmt.ruleFromString(s); }
 			@Override public String toString(Rule u) { return fmt.toString(u); }
 			@Override public Rule process(Rule u) { return handleUnseen(u); }
 		};
 	}
 	
-	private Dob handleUnseen(Dob dob) {
-		boolean changed = false;
-		List<Dob> newChildren = Lists.newArrayListWithCapacity(dob.size());
-		for (int i = 0; i < dob.size(); i++) {
-			Dob child = dob.at(i);
-			Dob submerged = dobs.submerge(child);
-			if (child != submerged) changed = true;
-			newChildren.add(submerged);
-		}
-		
-		if (changed) return new Dob(newChildren);
-		return dob;
-	}
-	
 	private Atom handleUnseen(Atom atom) {
 		Dob dob = dobs.submerge(atom.dob);
 		if (dob == atom.dob) return atom;
@@ -181,6 +182,10 @@ public class Pool {
 		return dobs.submerge(Unifier.replace(dob, unify));
 	}
 	
+	public Dob render(Template template, Unification unify) {
+		return template.render(unify, dobs);
+	}
+	
 	public Atom render(Atom atom, Map<Dob,Dob> unify) {
 		return atoms.submerge(Unifier.replace(atom, unify));
 	}
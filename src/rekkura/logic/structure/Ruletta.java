@@ -83,6 +83,10 @@ public class Ruletta {
 		// Extract all variables
 		for (Rule rule : result.allRules) {  pool.allVars.addAll(rule.vars); }
 
+		// Compile the body atoms for matching grounds and rendering
+		// and convert the distincts to slots
+		for (Rule rule : result.allRules) { rule.getMatchers(); rule.getTemplates(); rule.getDistincts(); }
+
 		// Prepare data structures to compute dependencies
 		result.homvar = Colut.any(pool.allVars);
 		for (Rule rule : result.allRules) { 
@@ -115,6 +119,28 @@ public class Ruletta {
 
 	public static Ruletta createEmpty() { return new Ruletta(); }
 
+	public static List<Rule> filterNonConflictingHeads(Dob query, Iterable<Rule> targets, Pool pool) {
+		List<Rule> result = Lists.newArrayList();
+		for (Rule rule : targets) {
+			if (Unifier.nonConflicting(rule.head.dob, query, pool)) result.add(rule);
+		}
+		return result;
+	}
+
+	/**
+	 * Proving just the slice for a set of queries generates the same 
+	 * dobs for the queries as proving every rule.
+	 * @param queries
+	 * @param pool
+	 * @return the rules with heads that might unify with one of the 
+	 * queries along with every rule that they depend on
+	 */
+	public Set<Rule> getSlice(Iterable<Dob> queries, Pool pool) {
+		Set<Rule> roots = Sets.newHashSet();
+		for (Dob query : queries) roots.addAll(filterNonConflictingHeads(query, allRules, pool));
+		return OtmUtil.flood(ruleToGenRule, roots);
+	}
+
 	public static List<Rule> filterNonConflictingBodies(Dob query, Iterable<Rule> targets, Pool pool) {
 		List<Rule> result = Lists.newArrayList();
 		for (Rule rule : targets) {
@@ -0,0 +1,157 @@
+package rekkura.logic.structure;
+
+import java.util.Arrays;
+
+import rekkura.logic.format.LogicFormat;
+import rekkura.logic.model.Dob;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * This is the {@link DobSubmerger} of pools that are not shared. It
+ * keeps open addressing tables of ids keyed on the structural hash
+ * and on the identity of each dob, so neither a lookup nor a hit in
+ * {@code submergeNode} allocates anything. Ids are handed out in the
+ * order that dobs are submerged.
+ * @author ptpham
+ *
+ */
+public class SerialDobSubmerger extends DobSubmerger {
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final int capacity;
+	private Dob[] byId;
+	private int size, marked;
+	
+	// Both tables store (id + 1) so that zero marks an empty slot.
+	private int[] structural, hashes, identity;
+
+	public SerialDobSubmerger(LogicFormat fmt) { this(fmt, INITIAL_CAPACITY); }
+	
+	public SerialDobSubmerger(LogicFormat fmt, int capacity) {
+		super(fmt);
+		this.capacity = capacity;
+		reset();
+	}
+
+	@Override public void clear() { reset(); }
+	
+	private void reset() {
+		this.byId = new Dob[capacity];
+		this.structural = new int[2 * capacity];
+		this.hashes = new int[2 * capacity];
+		this.identity = new int[2 * capacity];
+		this.size = 0;
+		this.marked = 0;
+	}
+	
+	@Override public void mark() { this.marked = this.size; }
+	
+	@Override
+	public void reclaim() {
+		Arrays.fill(byId, marked, size, null);
+		Arrays.fill(structural, 0);
+		Arrays.fill(identity, 0);
+		this.size = marked;
+		for (int id = 0; id < size; id++) place(id, mix(byId[id].structuralHash()));
+	}
+
+	@Override
+	public Dob submerge(Dob original) {
+		if (original == null) return null;
+		int hash = mix(original.structuralHash());
+		int id = lookup(original, hash);
+		if (id >= 0) return byId[id];
+
+		boolean changed = false;
+		Dob[] children = new Dob[original.size()];
+		for (int i = 0; i < children.length; i++) {
+			Dob child = original.at(i);
+			Dob submerged = submerge(child);
+			if (child != submerged) changed = true;
+			children[i] = submerged;
+		}
+
+		if (!changed) return insert(original, hash);
+
+		// The structural hash of the result is the same as the original
+		Dob result = new Dob(children);
+		id = lookup(result, hash);
+		if (id >= 0) return byId[id];
+		return insert(result, hash);
+	}
+
+	@Override
+	public Dob submergeNode(Dob[] children, int from, int count) {
+		int hash = hashNode(children, from, count);
+
+		int mask = structural.length - 1;
+		for (int i = hash & mask; structural[i] != 0; i = (i + 1) & mask) {
+			int id = structural[i] - 1;
+			if (hashes[i] == hash && matches(byId[id], children, from, count)) return byId[id];
+		}
+		
+		return submerge(new Dob(Arrays.copyOfRange(children, from, from + count)));
+	}
+
+	@Override
+	public int id(Dob dob) {
+		if (dob == null) return -1;
+		int mask = identity.length - 1;
+		for (int i = mix(System.identityHashCode(dob)) & mask; identity[i] != 0; i = (i + 1) & mask) {
+			if (byId[identity[i] - 1] == dob) return identity[i] - 1;
+		}
+		return -1;
+	}
+	
+	@Override
+	public Dob fromId(int id) { 
+		Preconditions.checkElementIndex(id, size);
+		return byId[id];
+	}
+	
+	@Override public int size() { return this.size; }
+	@Override public int marked() { return this.marked; }
+
+	private int lookup(Dob dob, int hash) {
+		int mask = structural.length - 1;
+		for (int i = hash & mask; structural[i] != 0; i = (i + 1) & mask) {
+			int id = structural[i] - 1;
+			if (hashes[i] == hash && matches(byId[id], dob)) return id;
+		}
+		return -1;
+	}
+
+	private Dob insert(Dob dob, int hash) {
+		if (size == byId.length) grow();
+		int id = size++;
+		byId[id] = dob;
+		place(id, hash);
+		return dob;
+	}
+
+	private void place(int id, int hash) {
+		int mask = structural.length - 1;
+		int i = hash & mask;
+		while (structural[i] != 0) i = (i + 1) & mask;
+		structural[i] = id + 1;
+		hashes[i] = hash;
+		
+		i = mix(System.identityHashCode(byId[id])) & mask;
+		while (identity[i] != 0) i = (i + 1) & mask;
+		identity[i] = id + 1;
+	}
+
+	private void grow() {
+		int[] oldHashes = this.hashes;
+		int[] oldStructural = this.structural;
+		
+		this.byId = Arrays.copyOf(byId, byId.length * 2);
+		this.structural = new int[oldStructural.length * 2];
+		this.hashes = new int[oldStructural.length * 2];
+		this.identity = new int[oldStructural.length * 2];
+		for (int i = 0; i < oldStructural.length; i++) {
+			if (oldStructural[i] != 0) place(oldStructural[i] - 1, oldHashes[i]);
+		}
+	}
+}
@@ -16,14 +16,18 @@ import com.google.common.collect.Lists;
 
 public class DepthCharger<S,A> {
 	public final StateMachine.Standard<S,A> machine;
+	private final StateMachine.Examine<S,A> examiner;
 	public final Limiter.Operations limitOps = Limiter.forOperations();
 	public final Limiter.Time limitTime = Limiter.forTime();
 	public Random rand = new Random();
 	public Map<Dob, A> fixed = null;
 	
 	private final Limiter limits = Limiter.combine(limitOps, limitTime);
+	@SuppressWarnings("unchecked")
 	private DepthCharger(StateMachine.Standard<S,A> machine) {
 		this.machine = machine;
+		this.examiner = machine instanceof StateMachine.Examine ? 
+			(StateMachine.Examine<S,A>) machine : null;
 	}
 	
 	public static <S,A> DepthCharger<S,A> create(StateMachine.Standard<S,A> machine) {
@@ -35,8 +39,17 @@ public class DepthCharger<S,A> {
 		result.add(state);
 		limits.begin();
 		
-		while (!machine.isTerminal(state) && !limits.exceeded()) {
-			ListMultimap<Dob, A> actions = machine.getActions(state);
+		while (true) {
+			ListMultimap<Dob, A> actions;
+			if (examiner != null) {
+				StateMachine.Examination<A> examination = examiner.examine(state);
+				if (examination.terminal || limits.exceeded()) break;
+				actions = examination.actions;
+			} else {
+				if (machine.isTerminal(state) || limits.exceeded()) break;
+				actions = machine.getActions(state);
+			}
+
 			Map<Dob, A> joint = OtmUtil.randomAssignment(actions, fixed, rand);
 			fixed = null;
 			
@@ -12,8 +12,30 @@ public class StateMachine<S, A> {
 	public interface NextState<S, A> { S nextState(S state, Map<Dob, A> actions); }
 	public interface IsTerminal<S> { boolean isTerminal(S state); }
 	public interface GetGoals<S> {  Map<Dob, Integer> getGoals(S state); }
+	public interface Examine<S, A> { Examination<A> examine(S state); }
 	
 	public interface Evaluator<S> extends IsTerminal<S>, GetGoals<S> { }
 	public interface Advancer<S, A> extends GetActions<S, A>, NextState<S, A> { }
 	public interface Standard<S, A> extends GetInitial<S>, Advancer<S, A>, Evaluator<S> { }
+	
+	/**
+	 * This holds everything that can be said about a single state without
+	 * knowing what the roles do. Machines that can work all of it out at 
+	 * once should implement {@link Examine} so that playouts only have to 
+	 * look at each state once.
+	 * @author ptpham
+	 *
+	 * @param <A>
+	 */
+	public static class Examination<A> {
+		public final boolean terminal;
+		public final Map<Dob, Integer> goals;
+		public final ListMultimap<Dob, A> actions;
+		
+		public Examination(boolean terminal, Map<Dob, Integer> goals, ListMultimap<Dob, A> actions) {
+			this.terminal = terminal;
+			this.goals = goals;
+			this.actions = actions;
+		}
+	}
 }
@@ -3,6 +3,9 @@ package rekkura.util;
 import java.util.Map;
 
 import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
 
 /**
  * Not sure why Guava's caches suck so much.
@@ -41,6 +44,14 @@ public class Cache<U, V> implements Function<U, V>{
 		return result;
 	}
 	
+	/**
+	 * Drops the stored values of every key that is not accepted.
+	 * @param keep
+	 */
+	public synchronized void retainKeys(Predicate<U> keep) {
+		Iterables.removeIf(stored.keySet(), Predicates.not(keep));
+	}
+	
 	private V validate(V v) {
 		if (v == null || checker == null || checker.apply(v)) return v;
 		return null;
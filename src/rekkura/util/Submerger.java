@@ -3,14 +3,35 @@ package rekkura.util;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
+/**
+ * A concurrent submerger can be shared between threads. Submersion
+ * there is lock free: when two threads race to submerge equivalent
+ * objects, the first one to be published wins and both threads get it.
+ * @author ptpham
+ *
+ * @param <U>
+ */
 public abstract class Submerger<U> {
-	Map<String, U> cache = Maps.newHashMap();
-	private Set<U> known = Sets.newHashSet();
+	final Map<String, U> cache;
+	private final Set<U> known;
+
+	public Submerger() { this(false); }
+	protected Submerger(boolean concurrent) {
+		if (concurrent) {
+			this.cache = new ConcurrentHashMap<String, U>();
+			this.known = Sets.newSetFromMap(new ConcurrentHashMap<U, Boolean>());
+		} else {
+			this.cache = Maps.newHashMap();
+			this.known = Sets.newHashSet();
+		}
+	}
 
 	public abstract U fromString(String s);
 	public abstract String toString(U u);
@@ -41,13 +62,23 @@ public abstract class Submerger<U> {
 			U reattempt = cache.get(stringed);
 			if (reattempt != null) return reattempt;
 			
-			cache.put(stringed, existing);
+			U prior = putIfAbsent(stringed, existing);
+			if (prior != null) return prior;
 			this.known.add(existing);
 		}
 		
 		return existing;
 	}
 	
+	private U putIfAbsent(String stringed, U u) {
+		if (cache instanceof ConcurrentMap) {
+			return ((ConcurrentMap<String, U>)cache).putIfAbsent(stringed, u);
+		}
+		
+		cache.put(stringed, u);
+		return null;
+	}
+	
 	public List<U> submerge(Iterable<U> originals) {
 		List<U> result = Lists.newArrayList();
 		for (U original : originals) result.add(submerge(original));
@@ -0,0 +1,102 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.CachingStateMachine;
+import rekkura.ggp.machina.GameState;
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.ggp.machina.PropNetStateMachine;
+import rekkura.ggp.machina.ProverStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.util.Colut;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+public class CachingMachineTest {
+
+	@Test
+	public void agreesWithBacking() {
+		CachingStateMachine<ProverStateMachine> cached = CachingStateMachine
+			.wrap(GgpStateMachine.GENERIC_FORWARD_PROVER, 64).create(SimpleGames.getTicTacToe());
+		ProverStateMachine plain = GgpStateMachine.GENERIC_FORWARD_PROVER.create(SimpleGames.getTicTacToe());
+
+		assertEquals(play(plain), play(cached));
+		assertEquals(0, cached.getHits());
+
+		long misses = cached.getMisses();
+		assertEquals(play(plain), play(cached));
+		assertEquals(misses, cached.getHits());
+		assertEquals(misses, cached.getMisses());
+		assertEquals(0.5, cached.getHitRate(), 1e-9);
+	}
+
+	@Test
+	public void evictsLeastRecent() {
+		CachingStateMachine<ProverStateMachine> cached = CachingStateMachine
+			.wrap(GgpStateMachine.GENERIC_FORWARD_PROVER, 2).create(SimpleGames.getTicTacToe());
+		List<Set<Dob>> states = Lists.newArrayList();
+		Set<Dob> state = cached.getInitial();
+		for (int i = 0; i < 4; i++) {
+			states.add(state);
+			state = cached.nextState(state, firstActions(cached, state));
+		}
+		assertEquals(2, cached.size());
+
+		cached.resetCounts();
+		ListMultimap<Dob, Dob> actions = cached.getActions(states.get(3));
+		assertSame(actions, cached.getActions(states.get(3)));
+		cached.getActions(states.get(0));
+		assertEquals(2, cached.getHits());
+		assertEquals(1, cached.getMisses());
+		assertEquals(2, cached.size());
+	}
+
+	@Test
+	public void keepsGameStates() {
+		CachingStateMachine<PropNetStateMachine> cached = CachingStateMachine
+			.wrap(GgpStateMachine.PROPNET, 16).create(SimpleGames.getTicTacToe());
+		Set<Dob> initial = cached.getInitial();
+		assertTrue(initial instanceof GameState);
+
+		Set<Dob> next = cached.nextState(initial, firstActions(cached, initial));
+		assertTrue(next instanceof GameState);
+		assertSame(next, cached.nextState(initial, firstActions(cached, initial)));
+	}
+
+	/**
+	 * Every role plays its first action in string order.
+	 */
+	private static List<Set<String>> play(GgpStateMachine machine) {
+		List<Set<String>> result = Lists.newArrayList();
+		Set<Dob> state = machine.getInitial();
+		result.add(Colut.stringifyUnordered(state));
+
+		while (!machine.isTerminal(state)) {
+			state = machine.nextState(state, firstActions(machine, state));
+			result.add(Colut.stringifyUnordered(state));
+		}
+
+		result.add(Colut.stringifyUnordered(machine.getGoals(state).entrySet()));
+		return result;
+	}
+
+	private static Map<Dob, Dob> firstActions(GgpStateMachine machine, Set<Dob> state) {
+		ListMultimap<Dob, Dob> actions = machine.getActions(state);
+		Map<Dob, Dob> joint = Maps.newHashMap();
+		for (Dob role : actions.keySet()) {
+			joint.put(role, Ordering.usingToString().min(actions.get(role)));
+		}
+		return joint;
+	}
+}
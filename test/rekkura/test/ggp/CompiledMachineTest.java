@@ -0,0 +1,54 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.BackwardStateMachine;
+import rekkura.ggp.machina.CompiledStateMachine;
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.ggp.machina.PropNet;
+import rekkura.ggp.machina.PropNetCompiler;
+import rekkura.ggp.machina.PropNetStateMachine;
+import rekkura.logic.model.Rule;
+
+import com.google.common.collect.ImmutableList;
+
+public class CompiledMachineTest {
+
+	private static final int PLAYOUTS = 8, MAX_STEPS = 40;
+
+	@Test
+	public void agreesWithPropNet() {
+		for (List<Rule> rules : ImmutableList.of(SimpleGames.getTicTacToe(),
+			SimpleGames.getConnectFour(), SimpleGames.getJoinButtonsAndLights(),
+			SimpleGames.getRing(), SimpleGames.getToggle())) {
+			PropNet net = PropNet.create(rules);
+			PropNetStateMachine expected = new PropNetStateMachine(net);
+			CompiledStateMachine actual = new CompiledStateMachine(net, PropNetCompiler.compile(net));
+
+			Random rand = new Random(rules.size());
+			for (int i = 0; i < PLAYOUTS; i++) GgpTestUtil.checkPlayout(expected, actual, rand, MAX_STEPS);
+		}
+	}
+
+	@Test
+	public void agreesWithProver() {
+		List<Rule> rules = SimpleGames.getTicTacToe();
+		GgpStateMachine expected = GgpStateMachine.BACKWARD_PROVER.create(rules);
+		GgpStateMachine actual = GgpStateMachine.COMPILED_OSTD.create(rules);
+		assertTrue(actual instanceof CompiledStateMachine);
+
+		Random rand = new Random(rules.size());
+		for (int i = 0; i < PLAYOUTS; i++) GgpTestUtil.checkPlayout(expected, actual, rand, MAX_STEPS);
+	}
+
+	@Test
+	public void fallsBackOutOfBudget() {
+		GgpStateMachine machine = CompiledStateMachine.withBudget(0).create(SimpleGames.getTicTacToe());
+		assertTrue(machine instanceof BackwardStateMachine);
+	}
+}
@@ -0,0 +1,58 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.CachingStateMachine;
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.state.model.StateMachine;
+import rekkura.util.Colut;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+public class ExamineTest {
+
+	private static final int MAX_STEPS = 20;
+
+	private static final List<GgpStateMachine.Factory<?>> FACTORIES = ImmutableList.of(
+		GgpStateMachine.GENERIC_FORWARD_PROVER, GgpStateMachine.GENERIC_BACKWARD_PROVER,
+		GgpStateMachine.BACKWARD_PROVER, GgpStateMachine.BACKWARD_PROVER_MAGIC,
+		CachingStateMachine.wrap(GgpStateMachine.BACKWARD_PROVER, 16));
+
+	@Test
+	public void agreesWithSeparateQueries() {
+		for (GgpStateMachine.Factory<?> factory : FACTORIES) {
+			checkAgreement(factory.create(SimpleGames.getTicTacToe()));
+			checkAgreement(factory.create(SimpleGames.getConnectFour()));
+			checkAgreement(factory.create(SimpleGames.getJoinButtonsAndLights()));
+		}
+	}
+
+	private static void checkAgreement(GgpStateMachine machine) {
+		Set<Dob> state = machine.getInitial();
+		for (int i = 0; i < MAX_STEPS; i++) {
+			StateMachine.Examination<Dob> examination = machine.examine(state);
+			ListMultimap<Dob, Dob> actions = machine.getActions(state);
+			assertEquals(machine.isTerminal(state), examination.terminal);
+			assertEquals(machine.getGoals(state), examination.goals);
+			assertEquals(Colut.stringifyUnordered(actions.entries()),
+				Colut.stringifyUnordered(examination.actions.entries()));
+			if (examination.terminal) break;
+
+			Map<Dob, Dob> joint = Maps.newHashMap();
+			for (Dob role : actions.keySet()) {
+				joint.put(role, Ordering.usingToString().min(actions.get(role)));
+			}
+			state = machine.nextState(state, joint);
+		}
+	}
+}
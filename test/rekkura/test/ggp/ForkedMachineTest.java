@@ -0,0 +1,81 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.ProverStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+import rekkura.util.Colut;
+import rekkura.util.Synchron;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+public class ForkedMachineTest {
+
+	private static final int MAX_STEPS = 9;
+
+	@Test
+	public void sharedTicTacToe() {
+		List<Rule> rules = SimpleGames.getTicTacToe();
+		final ProverStateMachine shared = ProverStateMachine
+			.createWithStratifiedForward(rules, Pool.createConcurrent());
+		final List<Set<String>> expected = playFirstActions(
+			ProverStateMachine.createWithStratifiedForward(rules));
+
+		final List<Throwable> failures = Synchron.newList();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			final ProverStateMachine machine = shared.fork();
+			threads.add(Synchron.startOnNewThread(new Runnable() {
+				@Override public void run() {
+					try {
+						for (int j = 0; j < 5; j++) {
+							assertEquals(expected, playFirstActions(machine));
+						}
+					} catch (Throwable e) { failures.add(e); }
+				}
+			}));
+		}
+
+		for (Thread thread : threads) Synchron.lightJoin(thread);
+		assertEquals(Lists.newArrayList(), failures);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void serialCannotFork() {
+		ProverStateMachine.createWithStratifiedForward(SimpleGames.getTrivial()).fork();
+	}
+
+	/**
+	 * Every role plays its first action in string order, so machines
+	 * on different pools should go through the same states.
+	 */
+	private static List<Set<String>> playFirstActions(ProverStateMachine machine) {
+		List<Set<String>> result = Lists.newArrayList();
+		Set<Dob> state = machine.getInitial();
+		result.add(Colut.stringifyUnordered(state));
+
+		for (int i = 0; i < MAX_STEPS && !machine.isTerminal(state); i++) {
+			ListMultimap<Dob, Dob> actions = machine.getActions(state);
+			Map<Dob, Dob> joint = Maps.newHashMap();
+			for (Dob role : actions.keySet()) {
+				joint.put(role, Ordering.usingToString().min(actions.get(role)));
+			}
+
+			state = machine.nextState(state, joint);
+			result.add(Colut.stringifyUnordered(state));
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,95 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.GameState;
+import rekkura.ggp.machina.PropNetStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.state.algorithm.DepthCharger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+
+public class GameStateTest {
+
+	private static final int PLAYOUTS = 8, MAX_STEPS = 40;
+
+	@Test
+	public void hashesAlongPlayouts() {
+		for (List<Rule> rules : ImmutableList.of(SimpleGames.getTicTacToe(),
+			SimpleGames.getConnectFour(), SimpleGames.getToggle())) {
+			PropNetStateMachine machine = PropNetStateMachine.create(rules);
+			DepthCharger<Set<Dob>, Dob> charger = DepthCharger.<Set<Dob>, Dob>create(machine);
+			charger.rand = new Random(rules.size());
+			charger.limitOps.max = MAX_STEPS;
+			for (int i = 0; i < PLAYOUTS; i++) {
+				for (Set<Dob> state : charger.fire(machine.getInitial())) {
+					Set<Dob> copy = Sets.newHashSet(state);
+					GameState converted = machine.toState(copy);
+					assertEquals(copy.hashCode(), state.hashCode());
+					assertEquals(converted.zobrist(), ((GameState) state).zobrist());
+					assertEquals(copy, state);
+					assertEquals(state, copy);
+					assertEquals(converted, state);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void transposition() {
+		PropNetStateMachine machine = PropNetStateMachine.create(SimpleGames.getTicTacToe());
+		GameState initial = machine.getInitial();
+		List<Dob> moves = Ordering.usingToString().sortedCopy(getMoves(machine, initial));
+		Dob first = moves.get(0), middle = moves.get(4), last = moves.get(8);
+
+		GameState forward = play(machine, initial, first, middle, last);
+		GameState backward = play(machine, initial, last, middle, first);
+		assertEquals(forward, backward);
+		assertEquals(forward.zobrist(), backward.zobrist());
+		assertEquals(forward.hashCode(), backward.hashCode());
+
+		GameState other = play(machine, initial, first, last, middle);
+		assertFalse(forward.equals(other));
+		assertTrue(forward.zobrist() != other.zobrist());
+	}
+
+	/**
+	 * The role in control makes each of the given moves in turn
+	 * and every other role does the one thing it can do.
+	 */
+	private static GameState play(PropNetStateMachine machine, GameState state, Dob... moves) {
+		for (Dob move : moves) {
+			Map<Dob, Dob> joint = Maps.newHashMap();
+			for (Map.Entry<Dob, Dob> entry : machine.getActions(state).entries()) {
+				Dob role = entry.getKey(), action = entry.getValue();
+				if (action.at(2) == move || !joint.containsKey(role)) joint.put(role, action);
+			}
+			state = machine.nextState(state, joint);
+		}
+		return state;
+	}
+
+	private static Set<Dob> getMoves(PropNetStateMachine machine, GameState state) {
+		Set<Dob> result = Sets.newHashSet();
+		ListMultimap<Dob, Dob> actions = machine.getActions(state);
+		for (Dob role : actions.keySet()) {
+			if (actions.get(role).size() < 2) continue;
+			for (Dob action : actions.get(role)) result.add(action.at(2));
+		}
+		return result;
+	}
+}
@@ -1,9 +1,21 @@
 package rekkura.test.ggp;
 
+import static org.junit.Assert.assertEquals;
+
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
+import rekkura.ggp.machina.GgpStateMachine;
 import rekkura.ggp.milleu.Game;
+import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
+import rekkura.util.Colut;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
 
 public class GgpTestUtil {
 
@@ -27,5 +39,46 @@ public class GgpTestUtil {
 	public static Game.Config createMediumConfig(List<Rule> rules) {
 		return new Game.Config(MEDIUM_STARTCLOCK, MEDIUM_PLAYCLOCK, rules);
 	}
-	
+
+	/**
+	 * Plays the same random playout on both machines and checks that 
+	 * they agree on everything along the way. The machines may work 
+	 * in different pools, so dobs are compared as strings.
+	 * @param expected
+	 * @param actual
+	 * @param rand
+	 * @param maxSteps
+	 */
+	public static void checkPlayout(GgpStateMachine expected, GgpStateMachine actual, Random rand, int maxSteps) {
+		Set<Dob> left = expected.getInitial(), right = actual.getInitial();
+		for (int i = 0; i < maxSteps; i++) {
+			assertEquals(Colut.stringifyUnordered(left), Colut.stringifyUnordered(right));
+			assertEquals(expected.isTerminal(left), actual.isTerminal(right));
+			assertEquals(Colut.stringifyUnordered(expected.getGoals(left).entrySet()),
+				Colut.stringifyUnordered(actual.getGoals(right).entrySet()));
+
+			ListMultimap<Dob, Dob> leftActions = expected.getActions(left);
+			ListMultimap<Dob, Dob> rightActions = actual.getActions(right);
+			assertEquals(Colut.stringifyUnordered(leftActions.values()),
+				Colut.stringifyUnordered(rightActions.values()));
+			if (expected.isTerminal(left)) return;
+
+			long seed = rand.nextLong();
+			left = expected.nextState(left, choose(leftActions, new Random(seed)));
+			right = actual.nextState(right, choose(rightActions, new Random(seed)));
+		}
+	}
+
+	/**
+	 * Picks the same actions in both machines by going
+	 * through the roles and actions in string order.
+	 */
+	private static Map<Dob, Dob> choose(ListMultimap<Dob, Dob> actions, Random rand) {
+		Map<Dob, Dob> joint = Maps.newHashMap();
+		for (Dob role : Ordering.usingToString().sortedCopy(actions.keySet())) {
+			List<Dob> sorted = Ordering.usingToString().sortedCopy(actions.get(role));
+			joint.put(role, sorted.get(rand.nextInt(sorted.size())));
+		}
+		return joint;
+	}
 }
@@ -0,0 +1,110 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.PropNet;
+import rekkura.ggp.milleu.Game;
+import rekkura.ggp.milleu.Grounding;
+import rekkura.logic.format.KifFormat;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+import rekkura.util.Limiter;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+public class GroundingTest {
+
+	private static final String[] SUCCESSORS = {
+		"(succ 1 2)", "(succ 2 3)",
+		"(<= (p ?x) (succ ?x ?y))",
+		"(<= (q ?y) (succ ?x ?y) (not (p ?y)))",
+		"(<= (r ?x) (succ ?x 1))" };
+
+	@Test
+	public void coversGenerated() {
+		for (List<Rule> rules : ImmutableList.of(SimpleGames.getTicTacToe(),
+			SimpleGames.getConnectFour(), SimpleGames.getJoinButtonsAndLights(),
+			SimpleGames.getRing(), SimpleGames.getToggle())) {
+			Grounding grounding = Grounding.create(rules);
+			assertTrue(grounding.complete);
+
+			Set<String> atoms = Sets.newHashSet();
+			for (Dob atom : grounding.atoms) atoms.add(atom.toString());
+			for (Dob dob : Game.generateAll(rules, Limiter.forOperations()).values()) {
+				assertTrue(dob.toString(), atoms.contains(dob.toString()));
+			}
+		}
+	}
+
+	@Test
+	public void domains() {
+		List<Rule> rules = KifFormat.genericStringsToRules(SUCCESSORS);
+		Grounding grounding = Grounding.create(rules);
+
+		Pool pool = grounding.pool;
+		Set<Dob> first = ImmutableSet.of(dob(pool, "1"), dob(pool, "2"));
+		Set<Dob> second = ImmutableSet.of(dob(pool, "2"), dob(pool, "3"));
+
+		for (Rule rule : grounding.domains.keySet()) {
+			List<ImmutableSet<Dob>> domains = grounding.domains.get(rule);
+			assertEquals(rule.vars.size(), domains.size());
+			if (rule.vars.isEmpty()) continue;
+
+			String head = rule.head.dob.at(0).name;
+			if (head.equals("r")) {
+				assertEquals(ImmutableList.of(ImmutableSet.<Dob>of()), domains);
+				continue;
+			}
+			assertEquals(first, domains.get(rule.vars.indexOf(dob(pool, "?x"))));
+			assertEquals(second, domains.get(rule.vars.indexOf(dob(pool, "?y"))));
+		}
+		assertNull(grounding.index.get(dob(pool, "(r 1)")));
+	}
+
+	@Test
+	public void negation() {
+		List<Rule> rules = KifFormat.genericStringsToRules(SUCCESSORS);
+		Grounding grounding = Grounding.create(rules);
+
+		int p2 = grounding.index.get(dob(grounding.pool, "(p 2)"));
+		Integer q2 = grounding.index.get(dob(grounding.pool, "(q 2)"));
+		Integer q3 = grounding.index.get(dob(grounding.pool, "(q 3)"));
+		assertNotNull(q2);
+		assertNotNull(q3);
+
+		// (p 3) can never be true, so (q 3) only needs (succ 2 3)
+		for (int i = 0; i < grounding.size(); i++) {
+			List<Integer> body = Ints.asList(grounding.bodies[i]);
+			if (grounding.heads[i] == q2) assertTrue(body.contains(~p2));
+			if (grounding.heads[i] == q3) assertEquals(1, body.size());
+		}
+	}
+
+	@Test
+	public void limited() {
+		List<Rule> rules = SimpleGames.getConnectFour();
+		assertFalse(Grounding.create(rules, new Pool(), Limiter.forOperations(1)).complete);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void limitedNetwork() {
+		PropNet.create(SimpleGames.getConnectFour(), Limiter.forOperations(1));
+	}
+
+	private static Dob dob(Pool pool, String raw) {
+		return pool.dobs.submerge(KifFormat.inst.dobFromString(raw));
+	}
+}
@@ -0,0 +1,72 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.BackwardStateMachine;
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.util.Colut;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+public class MagicMachineTest {
+
+	private static final int MAX_STEPS = 12;
+
+	@Test
+	public void agreesWithFullQueries() {
+		checkAgreement(SimpleGames.getTicTacToe());
+		checkAgreement(SimpleGames.getConnectFour());
+		checkAgreement(SimpleGames.getJoinButtonsAndLights());
+		checkAgreement(SimpleGames.getRing());
+	}
+
+	/**
+	 * Asking for the moves of one role on the ring should never
+	 * derive where the other role can reach.
+	 */
+	@Test
+	public void otherRolesUntouched() {
+		BackwardStateMachine machine = GgpStateMachine.BACKWARD_PROVER_MAGIC.create(SimpleGames.getRing());
+		Dob red = machine.prover.pool.dobs.submergeString("(red)");
+		Set<Dob> state = machine.getInitial();
+
+		assertEquals(8, machine.getActions(state, red).size());
+		for (Dob dob : machine.prover.truths) {
+			if (dob.isTerminal() || !dob.at(0).name.contains("reach")) continue;
+			assertEquals(red, dob.at(1));
+		}
+	}
+
+	private static void checkAgreement(List<Rule> rules) {
+		BackwardStateMachine machine = GgpStateMachine.BACKWARD_PROVER_MAGIC.create(rules);
+		Set<Dob> state = machine.getInitial();
+
+		for (int i = 0; i < MAX_STEPS; i++) {
+			ListMultimap<Dob, Dob> actions = machine.getActions(state);
+			Map<Dob, Integer> goals = machine.getGoals(state);
+			assertTrue(actions.keySet().size() > 0 || machine.isTerminal(state));
+
+			Map<Dob, Dob> joint = Maps.newHashMap();
+			for (Dob role : actions.keySet()) {
+				assertEquals(Colut.stringifyUnordered(actions.get(role)),
+					Colut.stringifyUnordered(machine.getActions(state, role)));
+				assertEquals(goals.get(role), machine.getGoal(state, role));
+				joint.put(role, Ordering.usingToString().min(actions.get(role)));
+			}
+
+			if (machine.isTerminal(state)) break;
+			state = machine.nextState(state, joint);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package rekkura.test.ggp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.ggp.machina.PropNet;
+import rekkura.ggp.machina.PropNetStateMachine;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.util.Colut;
+
+import com.google.common.collect.ImmutableList;
+
+public class PropNetMachineTest {
+
+	private static final int PLAYOUTS = 8, MAX_STEPS = 40;
+
+	@Test
+	public void agreesWithProver() {
+		checkAgreement(SimpleGames.getTrivial());
+		checkAgreement(SimpleGames.getTicTacToe());
+		checkAgreement(SimpleGames.getJoinButtonsAndLights());
+		checkAgreement(SimpleGames.getConnectFour());
+	}
+
+	@Test
+	public void largeNetwork() {
+		checkAgreement(SimpleGames.getPilgrimage(), 1);
+	}
+
+	/**
+	 * Where a role can reach on the ring is recursive,
+	 * so the network has cycles.
+	 */
+	@Test
+	public void recursiveRules() {
+		checkAgreement(SimpleGames.getRing());
+		checkAgreement(SimpleGames.getToggle());
+	}
+
+	@Test
+	public void differentialAgreesWithFull() {
+		for (List<Rule> rules : ImmutableList.of(SimpleGames.getTicTacToe(),
+			SimpleGames.getConnectFour(), SimpleGames.getRing(), SimpleGames.getToggle())) {
+			PropNet net = PropNet.create(rules);
+			PropNetStateMachine full = new PropNetStateMachine(net, false);
+			PropNetStateMachine differential = new PropNetStateMachine(net, true);
+			assertTrue(differential.isDifferential());
+
+			Random rand = new Random(rules.size());
+			for (int i = 0; i < PLAYOUTS; i++) GgpTestUtil.checkPlayout(full, differential, rand, MAX_STEPS);
+		}
+	}
+
+	@Test
+	public void foreignStates() {
+		List<Rule> rules = SimpleGames.getTicTacToe();
+		GgpStateMachine prover = GgpStateMachine.BACKWARD_PROVER.create(rules);
+		PropNetStateMachine machine = GgpStateMachine.PROPNET.create(rules);
+
+		Set<Dob> state = prover.getInitial();
+		Set<Dob> converted = machine.toState(state);
+		assertEquals(machine.getInitial(), converted);
+		assertEquals(converted, machine.toState(converted));
+		assertEquals(Colut.stringifyUnordered(prover.getActions(state).values()),
+			Colut.stringifyUnordered(machine.getActions(state).values()));
+	}
+
+	private static void checkAgreement(List<Rule> rules) {
+		checkAgreement(rules, PLAYOUTS);
+	}
+
+	private static void checkAgreement(List<Rule> rules, int playouts) {
+		Random rand = new Random(rules.size());
+		for (GgpStateMachine.Factory<PropNetStateMachine> factory :
+			ImmutableList.of(GgpStateMachine.PROPNET, GgpStateMachine.PROPNET_OSTD)) {
+			GgpStateMachine expected = GgpStateMachine.BACKWARD_PROVER.create(rules);
+			GgpStateMachine actual = factory.create(rules);
+			for (int i = 0; i < playouts; i++) GgpTestUtil.checkPlayout(expected, actual, rand, MAX_STEPS);
+		}
+	}
+}
@@ -344,7 +344,42 @@ public class SimpleGames {
 		return KifFormat.genericStringsToRules(raw);
 	}
 
+	/**
+	 * Two roles walk around a ring and may jump to anywhere that
+	 * they can reach.
+	 */
+	public static List<Rule> getRing() {
+		String[] raw = {
+			"(role red)", "(role blue)",
+			"(init (at red 1))", "(init (at blue 5))",
+			"(edge 1 2)", "(edge 2 3)", "(edge 3 4)", "(edge 4 5)",
+			"(edge 5 6)", "(edge 6 7)", "(edge 7 8)", "(edge 8 1)",
+			"(<= (reach ?r ?x) (true (at ?r ?x)))",
+			"(<= (reach ?r ?y) (reach ?r ?x) (edge ?x ?y))",
+			"(<= (legal ?r (go ?y)) (role ?r) (reach ?r ?y))",
+			"(<= (next (at ?r ?y)) (does ?r (go ?y)))",
+			"(<= (goal ?r 100) (true (at ?r 1)))",
+			"(<= (goal ?r 0) (role ?r) (not (true (at ?r 1))))",
+			"(<= terminal (true (at red 5)))" };
 
+		return KifFormat.genericStringsToRules(raw);
+	}
 
+	/**
+	 * The two propositions support each other but only the state 
+	 * supports the cycle, so the cycle goes away every other turn.
+	 */
+	public static List<Rule> getToggle() {
+		String[] raw = {
+			"(role robot)", "(init on)",
+			"(<= (legal robot flip))",
+			"(<= (next on) (not (true on)))",
+			"(<= (p a) (true on))",
+			"(<= (p a) (p b))",
+			"(<= (p b) (p a))",
+			"(<= (goal robot 100) (p b))",
+			"(<= (goal robot 0) (not (p b)))" };
 
+		return KifFormat.genericStringsToRules(raw);
+	}
 }
@@ -0,0 +1,76 @@
+package rekkura.test.logic.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Renderer;
+import rekkura.logic.algorithm.Terra;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.prover.StratifiedForward;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+public class AdaptiveTest extends RendererTest {
+	
+	@Override protected Renderer getExpansion() { 
+		return Renderer.newAdaptive(Renderer.newStandard(), 
+			Renderer.newChaining(), Renderer.newLeapfrog(), Renderer.newHashJoin());
+	}
+	
+	private static final String RULE = "{(X)(Y)|<((Q)(X)(Y)),true> :- <((P)(X)),true><((R)(Y)),true>}";
+	private static final List<String> INPUTS = Lists.newArrayList("((P)(a))", "((P)(b))", "((R)(a))", "((R)(b))");
+	
+	@Test
+	public void avoidsFailures() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString(RULE);
+		Set<Dob> truths = Sets.newHashSet(pool.dobs.submergeStrings(INPUTS));
+		Multimap<Atom,Dob> support = Renderer.getNaiveSupport(rule, truths);
+		
+		Renderer.Standard standard = Renderer.newStandard();
+		standard.ops.max = 0;
+		Renderer.HashJoin join = Renderer.newHashJoin();
+		Renderer.Adaptive adaptive = Renderer.newAdaptive(standard, join);
+		assertNull(adaptive.getChoice(rule));
+		assertTrue(adaptive.getStatistics(rule).isEmpty());
+		
+		for (int i = 0; i < 2 * Renderer.Adaptive.PERIOD; i++) {
+			List<Dob> heads = Lists.newArrayList(Terra.renderUnifiedHeads(
+				adaptive.render(rule, truths, support, pool), rule, pool));
+			assertEquals(4, heads.size());
+			assertFalse(adaptive.ops.failed);
+		}
+		
+		assertSame(join, adaptive.getChoice(rule));
+		List<Renderer.Adaptive.Statistics> stats = adaptive.getStatistics(rule);
+		assertEquals(stats.get(0).races, stats.get(0).failures);
+		assertEquals(0, stats.get(1).failures);
+		assertEquals(2 * Renderer.Adaptive.PERIOD, stats.get(1).renders);
+	}
+	
+	@Test
+	public void visibleChoices() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString(RULE);
+		StratifiedForward prover = new StratifiedForward(Lists.newArrayList(rule), pool);
+		Renderer.Adaptive adaptive = Renderer.newAdaptive(Renderer.newHashJoin());
+		prover.useRenderer(rule, adaptive);
+		assertTrue(prover.getRendererChoices().isEmpty());
+		
+		prover.proveAll(pool.dobs.submergeStrings(INPUTS));
+		assertSame(adaptive.children.get(0), prover.getRendererChoices().get(rule));
+	}
+}
@@ -0,0 +1,104 @@
+package rekkura.test.logic.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Renderer;
+import rekkura.logic.algorithm.Terra;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Cachet;
+import rekkura.logic.structure.Pool;
+import rekkura.logic.structure.Ruletta;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+public class IndexedTest {
+
+	private static final String LINE = "{(A)(B)(C)(X)|<((line)(X)),true>:-"
+		+ "<((succ)(A)(B)),true><((succ)(B)(C)),true>"
+		+ "<((cell)(A)(X)),true><((cell)(B)(X)),true><((cell)(C)(X)),true>}";
+
+	private static final List<String> BOARD = Lists.newArrayList(
+		"((succ)(1)(2))", "((succ)(2)(3))", "((succ)(3)(4))",
+		"((cell)(1)(x))", "((cell)(2)(x))", "((cell)(3)(x))", "((cell)(4)(o))");
+
+	@Test
+	public void agreesWithStandard() {
+		checkAgreement(LINE, BOARD, "((line)(x))");
+		checkAgreement("{(A)(B)(X)|<((pair)(A)(B)),true>:-<((cell)(A)(X)),true><((cell)(B)(X)),true>"
+			+ "<((succ)(A)(B)),false>}", BOARD, "((pair)(1)(1))", "((pair)(1)(3))", "((pair)(2)(2))",
+			"((pair)(2)(1))", "((pair)(3)(1))", "((pair)(3)(2))", "((pair)(3)(3))", "((pair)(4)(4))");
+		checkAgreement("{(A)(B)(X)|<((pair)(A)(B)),true>:-<((cell)(A)(X)),true><((cell)(B)(X)),true>"
+			+ "<(A)!=(B)>}", BOARD, "((pair)(1)(2))", "((pair)(1)(3))", "((pair)(2)(1))",
+			"((pair)(2)(3))", "((pair)(3)(1))", "((pair)(3)(2))");
+	}
+
+	@Test
+	public void fewerCandidates() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString(LINE);
+		Cachet cachet = new Cachet(Ruletta.create(ImmutableList.of(rule), pool), pool);
+		Set<Dob> truths = store(cachet, pool, BOARD);
+
+		Renderer standard = Renderer.newStandard();
+		Renderer indexed = Renderer.newIndexed(cachet);
+		ListMultimap<Atom, Dob> support = cachet.getSupport(rule);
+		assertEquals(render(standard, rule, truths, support, pool),
+			render(indexed, rule, truths, support, pool));
+		assertTrue(indexed.ops.cur < standard.ops.cur);
+	}
+
+	/**
+	 * When the support is not everything in the cachet, only
+	 * the support should be used.
+	 */
+	@Test
+	public void partialSupport() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString(LINE);
+		Cachet cachet = new Cachet(Ruletta.create(ImmutableList.of(rule), pool), pool);
+		Set<Dob> truths = store(cachet, pool, BOARD);
+		truths.addAll(store(cachet, pool, Lists.newArrayList("((cell)(4)(x))")));
+
+		ListMultimap<Atom, Dob> support = cachet.getSupport(rule);
+		Atom last = rule.body.get(rule.body.size() - 1);
+		support.get(last).retainAll(pool.dobs.submergeStrings(Lists.newArrayList("((cell)(4)(o))")));
+
+		assertEquals(Sets.newHashSet(), render(Renderer.newStandard(), rule, truths, support, pool));
+		assertEquals(Sets.newHashSet(), render(Renderer.newIndexed(cachet), rule, truths, support, pool));
+	}
+
+	private void checkAgreement(String rawRule, List<String> rawTruths, String... rawExpected) {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString(rawRule);
+		Cachet cachet = new Cachet(Ruletta.create(ImmutableList.of(rule), pool), pool);
+		Set<Dob> truths = store(cachet, pool, rawTruths);
+
+		Multimap<Atom, Dob> support = cachet.getSupport(rule);
+		Set<Dob> expected = Sets.newHashSet(pool.dobs.submergeStrings(Lists.newArrayList(rawExpected)));
+		assertEquals(expected, render(Renderer.newStandard(), rule, truths, support, pool));
+		assertEquals(expected, render(Renderer.newIndexed(cachet), rule, truths, support, pool));
+	}
+
+	private static Set<Dob> store(Cachet cachet, Pool pool, List<String> rawTruths) {
+		Set<Dob> truths = Sets.newHashSet(pool.dobs.submergeStrings(rawTruths));
+		cachet.storeAllGround(truths);
+		return truths;
+	}
+
+	private static Set<Dob> render(Renderer renderer, Rule rule,
+			Set<Dob> truths, Multimap<Atom, Dob> support, Pool pool) {
+		return Terra.renderUnifiedHeads(renderer.render(rule, truths, support, pool), rule, pool);
+	}
+}
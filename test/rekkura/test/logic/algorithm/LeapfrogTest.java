@@ -0,0 +1,7 @@
+package rekkura.test.logic.algorithm;
+
+import rekkura.logic.algorithm.Renderer;
+
+public class LeapfrogTest extends RendererTest {
+	@Override protected Renderer getExpansion() { return Renderer.newLeapfrog(); }
+}
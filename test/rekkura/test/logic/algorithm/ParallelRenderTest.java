@@ -0,0 +1,85 @@
+package rekkura.test.logic.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Renderer;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+public class ParallelRenderTest {
+	
+	private static final String RULE = "{(X)(Y)|<((Q)(X)(Y)),true>:-"
+		+ "<((P)(X)),true><((R)(Y)),true><((S)(X)(Y)),false><(X)!=(Y)>}";
+
+	/**
+	 * A space that is split across workers should render exactly 
+	 * what it renders on one thread and in the same order.
+	 */
+	@Test
+	public void sameAsSequential() {
+		checkSame(Renderer.newStandard(), Renderer.newStandard());
+		checkSame(Renderer.newChaining(), Renderer.newChaining());
+	}
+	
+	/**
+	 * A failover passes its workers on, so a standard renderer
+	 * that is wrapped in one splits just like a bare one.
+	 */
+	@Test
+	public void failoverSplits() {
+		Renderer.Failover sequential = Renderer.newStandardFailover();
+		Renderer.Failover parallel = Renderer.newStandardFailover();
+		sequential.children.get(0).ops.max = parallel.children.get(0).ops.max = Long.MAX_VALUE;
+		checkSame(sequential, parallel);
+		assertFalse(parallel.children.get(0).ops.failed);
+	}
+	
+	private void checkSame(Renderer sequential, Renderer parallel) {
+		Pool pool = Pool.createConcurrent();
+		Rule rule = pool.rules.submergeString(RULE);
+		
+		List<String> raw = Lists.newArrayList();
+		for (int i = 0; i < 150; i++) {
+			raw.add("((P)(" + i + "))");
+			raw.add("((R)(" + i + "))");
+			raw.add("((S)(" + i + ")(" + (i + 1) + "))");
+		}
+		Set<Dob> truths = Sets.newHashSet(pool.dobs.submergeStrings(raw));
+		Multimap<Atom, Dob> support = Renderer.getNaiveSupport(rule, truths);
+		
+		// Workers are only started once something is split
+		final AtomicInteger started = new AtomicInteger();
+		ForkJoinPool workers = new ForkJoinPool(4, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			@Override public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				started.incrementAndGet();
+				return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			}
+		}, null, false);
+		parallel.useWorkers(workers);
+		List<Map<Dob, Dob>> expected = sequential.apply(rule, truths, support, pool);
+		List<Map<Dob, Dob>> actual = parallel.apply(rule, truths, support, pool);
+		workers.shutdown();
+		
+		assertEquals(150 * 149 - 149, expected.size());
+		assertEquals(expected, actual);
+		assertFalse(parallel.ops.failed);
+		assertTrue(started.get() > 0);
+	}
+}
@@ -0,0 +1,69 @@
+package rekkura.test.logic.algorithm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Renderer;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+public class PlannerTest {
+	
+	@Test
+	public void buckets() {
+		assertEquals(0, Renderer.getBucket(0));
+		assertEquals(1, Renderer.getBucket(1));
+		assertEquals(1, Renderer.getBucket(3));
+		assertEquals(2, Renderer.getBucket(4));
+		assertEquals(2, Renderer.getBucket(15));
+		assertEquals(3, Renderer.getBucket(16));
+	}
+	
+	@Test
+	public void planOncePerBucket() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((Q)(X)(Y)),true> :- <((P)(X)),true><((R)(Y)),true>}");
+		Renderer.Standard standard = Renderer.newStandard();
+		
+		Multimap<Atom, Dob> small = support(pool, rule, 4, 5);
+		Renderer.Plan first = standard.plans.get(rule, small);
+		assertSame(first, standard.plans.get(rule, small));
+		assertSame(first, standard.plans.get(rule, support(pool, rule, 5, 6)));
+		assertEquals(1, standard.plans.size());
+		
+		Renderer.Plan second = standard.plans.get(rule, support(pool, rule, 64, 5));
+		assertNotSame(first, second);
+		assertEquals(2, standard.plans.size());
+		assertSame(first, standard.plans.get(rule, small));
+		
+		assertEquals(Sets.newHashSet(rule.body), Sets.newHashSet(first.order));
+		assertEquals(0, first.check.size());
+		assertSame(rule.getDistincts(), first.distincts);
+	}
+	
+	private static Multimap<Atom, Dob> support(Pool pool, Rule rule, int first, int second) {
+		List<String> raw = Lists.newArrayList();
+		for (int i = 0; i < first; i++) raw.add("((P)(" + i + "))");
+		for (int i = 0; i < second; i++) raw.add("((R)(" + i + "))");
+		Set<Dob> truths = Sets.newHashSet(pool.dobs.submergeStrings(raw));
+		
+		Multimap<Atom, Dob> result = Renderer.getNaiveSupport(rule, truths);
+		for (Atom atom : rule.body) {
+			String name = atom.dob.at(0).toString();
+			for (Dob dob : truths) if (!dob.at(0).toString().equals(name)) result.remove(atom, dob);
+		}
+		return result;
+	}
+}
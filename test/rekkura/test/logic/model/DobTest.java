@@ -0,0 +1,67 @@
+package rekkura.test.logic.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import rekkura.logic.format.StandardFormat;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class DobTest {
+	private final StandardFormat fmt = StandardFormat.inst;
+
+	@Test
+	public void cachedFields() {
+		Dob dob = fmt.dobFromString("((f)((g)(a))(b))");
+		Dob copy = dob.deepCopy();
+		
+		assertNotSame(dob, copy);
+		assertEquals(dob.structuralHash(), copy.structuralHash());
+		assertEquals(6, dob.nodeCount());
+		assertEquals(2, dob.depth());
+		assertEquals(0, dob.at(0).depth());
+		
+		Dob other = fmt.dobFromString("((f)((g)(b))(a))");
+		assertFalse(dob.structuralHash() == other.structuralHash());
+	}
+	
+	@Test
+	public void fullIterator() {
+		Dob dob = fmt.dobFromString("((f)((g)(a))(b))");
+		List<String> visited = Lists.newArrayList();
+		for (Dob node : dob.fullIterable()) visited.add(fmt.toString(node));
+		
+		List<String> expected = Lists.newArrayList("((f)((g)(a))(b))", 
+			"(b)", "((g)(a))", "(a)", "(g)", "(f)");
+		assertEquals(expected, visited);
+	}
+	
+	@Test
+	public void grounded() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)|<((f)(X)),true>:-<((g)(X)),true>}");
+		assertTrue(rule.isGrounded(fmt.dobFromString("((f)(a))")));
+		assertFalse(rule.isGrounded(rule.head.dob));
+	}
+	
+	@Test
+	public void walks() {
+		Dob dob = fmt.dobFromString("((f)((g)(a))(a))");
+		Dob a = dob.at(2);
+		Dob g = dob.at(1).at(0);
+		
+		assertTrue(dob.containsAny(Sets.newHashSet(g)));
+		assertTrue(dob.containsNone(Sets.newHashSet(new Dob("a"))));
+		assertEquals(1, dob.countIn(Sets.newHashSet(a)));
+	}
+}
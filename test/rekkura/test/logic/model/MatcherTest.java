@@ -0,0 +1,72 @@
+package rekkura.test.logic.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Unifier;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Matcher;
+import rekkura.logic.model.Rule;
+import rekkura.logic.model.Unification;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+
+public class MatcherTest {
+
+	@Test
+	public void bindAndCheck() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)),true>:-<((f)(X)((g)(Y))(X)),true>}");
+		Matcher matcher = rule.getMatchers().get(0);
+
+		Unification unify = Unification.from(rule.vars);
+		assertTrue(matcher.match(pool.dobs.submergeString("((f)(a)((g)(b))(a))"), unify));
+		assertSame(pool.dobs.submergeString("(a)"), unify.assigned[0]);
+		assertSame(pool.dobs.submergeString("(b)"), unify.assigned[1]);
+
+		unify.clear();
+		assertFalse(matcher.match(pool.dobs.submergeString("((f)(a)((g)(b))(b))"), unify));
+		unify.clear();
+		assertFalse(matcher.match(pool.dobs.submergeString("((f)(a)(b)(a))"), unify));
+		unify.clear();
+		assertFalse(matcher.match(pool.dobs.submergeString("((k)(a)((g)(b))(a))"), unify));
+	}
+
+	@Test
+	public void agreesWithUnifier() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)),true>:-<((f)(X)(Y)),true><((f)(X)(X)),true><((f)((g)(X))(a)),true>}");
+		List<Dob> grounds = pool.dobs.submergeStrings(Lists.newArrayList("((f)(a)(a))", "((f)(a)(b))",
+			"((f)((g)(a))(a))", "((f)((g)(a))(b))", "((f)(a))", "((f)(a)(b)(c))", "(f)", "((g)(a)(a))",
+			"((f)(X)(X))", "((f)(X)(a))", "((f)((g)(X))(X))", "((f)(Y)(X))"));
+
+		for (Atom atom : rule.body) {
+			Matcher matcher = rule.getMatcher(atom);
+			for (Dob ground : grounds) {
+				Unification unify = Unification.from(rule.vars);
+				Map<Dob, Dob> expected = Unifier.unifyVars(atom.dob, ground, rule.vars);
+				boolean matched = matcher.match(ground, unify);
+
+				assertEquals(expected != null, matched);
+				if (matched) assertEquals(expected, unify.toMap());
+			}
+		}
+	}
+
+	@Test
+	public void compiledOnce() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)|<((h)(X)),true>:-<((f)(X)),true>}");
+		assertSame(rule.getMatchers(), rule.getMatchers());
+		assertEquals(3, rule.getMatchers().get(0).size());
+	}
+}
@@ -0,0 +1,81 @@
+package rekkura.test.logic.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.model.Template;
+import rekkura.logic.model.Unification;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.ImmutableMap;
+
+public class TemplateTest {
+
+	@Test
+	public void agreesWithReplace() {
+		checkAgreement(new Pool());
+		checkAgreement(Pool.createConcurrent());
+	}
+
+	@Test
+	public void renderWithoutGrowing() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)((g)(Y)(c))),true>:-<((f)(X)(Y)),true>}");
+		Template head = rule.getTemplate(rule.head);
+
+		Unification unify = unification(pool, rule, "(a)", "(b)");
+		Dob first = pool.render(head, unify);
+		int size = pool.dobs.size();
+
+		assertSame(first, pool.render(head, unify));
+		assertSame(first, pool.render(head, unification(pool, rule, "(a)", "(b)")));
+		assertEquals(size, pool.dobs.size());
+		assertSame(pool.dobs.submergeString("((h)(a)((g)(b)(c)))"), first);
+	}
+
+	@Test
+	public void callerStack() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)((g)(Y)(c))),true>:-<((f)(X)(Y)),true>}");
+		Template head = rule.getTemplate(rule.head);
+		Unification unify = unification(pool, rule, "(a)", "(b)");
+
+		Dob[] stack = new Dob[head.height()];
+		assertSame(pool.render(head, unify), head.render(unify.assigned, pool.dobs, stack));
+	}
+
+	@Test
+	public void unassignedVariables() {
+		Pool pool = new Pool();
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)(Y)),true>:-<((f)(X)(Y)),true>}");
+		Unification unify = Unification.from(ImmutableMap.of(
+			pool.dobs.submergeString("(X)"), pool.dobs.submergeString("(a)")), rule.vars);
+
+		Dob rendered = pool.render(rule.getTemplate(rule.head), unify);
+		assertSame(pool.render(rule.head.dob, unify.toMap()), rendered);
+	}
+
+	private void checkAgreement(Pool pool) {
+		Rule rule = pool.rules.submergeString("{(X)(Y)|<((h)(X)((g)(Y)(X))),true>:-<((f)(X)(Y)),true><(X),false>}");
+		Unification unify = unification(pool, rule, "((k)(a))", "(b)");
+		Map<Dob, Dob> map = unify.toMap();
+
+		for (Atom atom : rule.body) {
+			assertSame(pool.render(atom.dob, map), pool.render(rule.getTemplate(atom), unify));
+		}
+		assertSame(pool.render(rule.head.dob, map), pool.render(rule.getTemplate(rule.head), unify));
+	}
+
+	private static Unification unification(Pool pool, Rule rule, String first, String second) {
+		Map<Dob, Dob> map = ImmutableMap.of(pool.dobs.submergeString("(X)"), pool.dobs.submergeString(first),
+			pool.dobs.submergeString("(Y)"), pool.dobs.submergeString(second));
+		return Unification.from(map, rule.vars);
+	}
+}
@@ -0,0 +1,165 @@
+package rekkura.test.logic.prover;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import rekkura.logic.algorithm.Renderer;
+import rekkura.logic.model.Atom;
+import rekkura.logic.model.Dob;
+import rekkura.logic.model.Rule;
+import rekkura.logic.model.Unification;
+import rekkura.logic.prover.StratifiedForward;
+import rekkura.logic.prover.StratifiedProver;
+import rekkura.logic.prover.StratifiedProver.Factory;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+public class StratifiedForwardTest extends StratifiedProverTest {
+	@Override protected Factory getFactory() { return StratifiedProver.FORWARD_FACTORY; }
+	
+	/**
+	 * With semi-naive evaluation, every assignment to the
+	 * body of a recursive rule is rendered exactly once.
+	 */
+	@Test
+	public void semiNaive() {
+		Pool pool = new Pool();
+		List<Rule> rules = Lists.newArrayList(
+			pool.rules.submergeString("{(X)(Y)|<((path)(X)(Y)),true>:-<((edge)(X)(Y)),true>}"),
+			pool.rules.submergeString("{(X)(Y)(Z)|<((path)(X)(Z)),true>:-<((edge)(X)(Y)),true><((path)(Y)(Z)),true>}"));
+		StratifiedForward prover = new StratifiedForward(rules, pool);
+		
+		final int[] rendered = { 0 };
+		for (Rule rule : prover.rta.allRules) {
+			prover.useRenderer(rule, new Renderer() {
+				private final Renderer inner = Renderer.newHashJoin();
+				@Override public List<Unification> render(Rule rule, Set<Dob> truths, 
+						Multimap<Atom, Dob> support, Pool pool) {
+					List<Unification> result = inner.render(rule, truths, support, pool);
+					rendered[0] += result.size();
+					return result;
+				}
+			});
+		}
+		
+		int size = 30;
+		List<Dob> edges = Lists.newArrayList();
+		for (int i = 0; i < size; i++) {
+			edges.add(pool.dobs.submergeString("((edge)(" + i + ")(" + (i + 1) + "))"));
+		}
+		
+		Set<Dob> derived = prover.proveAll(edges);
+		assertEquals(size * (size + 1) / 2, derived.size());
+		assertEquals(derived.size(), rendered[0]);
+	}
+	
+	/**
+	 * Proving a change in the base truths should prove the same 
+	 * thing as proving everything again. The rules derive the same 
+	 * dob in more than one way, recurse and negate the recursion.
+	 */
+	@Test
+	public void incrementalAgreesWithProveAll() {
+		Pool pool = new Pool();
+		List<Rule> rules = getGraphRules(pool);
+		StratifiedForward incremental = new StratifiedForward(rules, pool);
+		StratifiedForward full = new StratifiedForward(rules, pool);
+		
+		List<Dob> edges = getEdges(pool, 6);
+		Random random = new Random(0);
+		Set<Dob> truths = Sets.newHashSet();
+		for (int i = 0; i < 40; i++) {
+			toggle(truths, edges, random, 3);
+			assertEquals(full.proveAll(truths), incremental.proveIncrementally(truths));
+		}
+	}
+	
+	/**
+	 * A rule with only negative terms below the first level is
+	 * not queued by any truth, so both have to find it themselves.
+	 */
+	@Test
+	public void onlyNegativeAgrees() {
+		Pool pool = new Pool();
+		List<Rule> rules = Lists.newArrayList(
+			pool.rules.submergeString("{|<(R),true>:-<(P),true>}"),
+			pool.rules.submergeString("{|<(S),true>:-<(R),false>}"));
+		StratifiedForward incremental = new StratifiedForward(rules, pool);
+		StratifiedForward full = new StratifiedForward(rules, pool);
+		
+		Dob p = pool.dobs.submergeString("(P)");
+		Dob r = pool.dobs.submergeString("(R)");
+		Dob s = pool.dobs.submergeString("(S)");
+		
+		Set<Dob> truths = Sets.newHashSet();
+		assertEquals(Sets.newHashSet(s), full.proveAll(truths));
+		assertEquals(full.proveAll(truths), incremental.proveIncrementally(truths));
+		
+		truths.add(p);
+		assertEquals(Sets.newHashSet(r), full.proveAll(truths));
+		assertEquals(full.proveAll(truths), incremental.proveIncrementally(truths));
+		
+		truths.remove(p);
+		assertEquals(full.proveAll(truths), incremental.proveIncrementally(truths));
+	}
+	
+	@Test
+	public void parallelAgreesWithSequential() {
+		Pool pool = Pool.createConcurrent();
+		List<Rule> rules = getGraphRules(pool);
+		StratifiedForward sequential = new StratifiedForward(rules, pool);
+		StratifiedForward parallel = new StratifiedForward(rules, pool);
+		StratifiedForward incremental = new StratifiedForward(rules, pool);
+		
+		ForkJoinPool workers = new ForkJoinPool(4);
+		parallel.useWorkers(workers);
+		incremental.useWorkers(workers);
+		
+		List<Dob> edges = getEdges(pool, 6);
+		Random random = new Random(0);
+		Set<Dob> truths = Sets.newHashSet();
+		for (int i = 0; i < 20; i++) {
+			toggle(truths, edges, random, 5);
+			Set<Dob> expected = sequential.proveAll(truths);
+			assertEquals(expected, parallel.proveAll(truths));
+			assertEquals(expected, incremental.proveIncrementally(truths));
+		}
+		workers.shutdown();
+	}
+	
+	private static List<Rule> getGraphRules(Pool pool) {
+		return Lists.newArrayList(
+			pool.rules.submergeString("{(X)(Y)|<((path)(X)(Y)),true>:-<((edge)(X)(Y)),true>}"),
+			pool.rules.submergeString("{(X)(Y)(Z)|<((path)(X)(Z)),true>:-<((edge)(X)(Y)),true><((path)(Y)(Z)),true>}"),
+			pool.rules.submergeString("{(X)(Y)|<((near)(X)),true>:-<((edge)(X)(Y)),true>}"),
+			pool.rules.submergeString("{(X)(Y)|<((near)(Y)),true>:-<((edge)(X)(Y)),true>}"),
+			pool.rules.submergeString("{(X)|<((far)(X)),true>:-<((near)(X)),true><((path)((0))(X)),false>}"),
+			pool.rules.submergeString("{(X)|<((lonely)(X)),true>:-<((near)(X)),true><((far)(X)),false>}"));
+	}
+	
+	private static List<Dob> getEdges(Pool pool, int size) {
+		List<Dob> edges = Lists.newArrayList();
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				edges.add(pool.dobs.submergeString("((edge)((" + i + "))((" + j + ")))"));
+			}
+		}
+		return edges;
+	}
+	
+	private static void toggle(Set<Dob> truths, List<Dob> edges, Random random, int count) {
+		for (int i = 0; i < count; i++) {
+			Dob edge = edges.get(random.nextInt(edges.size()));
+			if (!truths.remove(edge)) truths.add(edge);
+		}
+	}
+}
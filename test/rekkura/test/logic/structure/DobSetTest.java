@@ -0,0 +1,66 @@
+package rekkura.test.logic.structure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.logic.model.Dob;
+import rekkura.logic.structure.DobSet;
+import rekkura.logic.structure.Pool;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class DobSetTest {
+
+	@Test
+	public void basic() {
+		Pool pool = new Pool();
+		List<Dob> dobs = pool.dobs.submergeStrings(Lists.newArrayList("((f)(a))", "((f)(b))", "(c)"));
+		DobSet set = DobSet.create(pool);
+		
+		assertTrue(set.addAll(dobs));
+		assertFalse(set.add(dobs.get(0)));
+		assertEquals(3, set.size());
+		assertEquals(Sets.newHashSet(dobs), Sets.newHashSet(set));
+		
+		assertTrue(set.contains(pool.dobs.submergeString("((f)(a))")));
+		assertFalse(set.contains(pool.dobs.submergeString("(f)")));
+		assertFalse(set.contains(dobs.get(0).deepCopy()));
+		
+		assertTrue(set.remove(dobs.get(1)));
+		assertFalse(set.remove(dobs.get(1)));
+		assertEquals(2, set.size());
+		
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.iterator().hasNext());
+	}
+	
+	@Test
+	public void iteratorRemove() {
+		Pool pool = new Pool();
+		DobSet set = DobSet.create(pool);
+		set.addAll(pool.dobs.submergeStrings(Lists.newArrayList("(a)", "(b)", "(c)")));
+		Dob b = pool.dobs.submergeString("(b)");
+		
+		Iterator<Dob> iterator = set.iterator();
+		while (iterator.hasNext()) if (iterator.next() == b) iterator.remove();
+		
+		Set<Dob> expected = Sets.newHashSet(pool.dobs.submergeStrings(Lists.newArrayList("(a)", "(c)")));
+		assertEquals(expected, set);
+		assertEquals(2, set.size());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void unsubmerged() {
+		Pool pool = new Pool();
+		DobSet.create(pool).add(new Dob("a"));
+	}
+}
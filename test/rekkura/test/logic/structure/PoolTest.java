@@ -1,10 +1,22 @@
 package rekkura.test.logic.structure;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Test;
 
+import rekkura.logic.model.Dob;
 import rekkura.logic.model.Rule;
 import rekkura.logic.structure.Pool;
+import rekkura.util.Synchron;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class PoolTest {
 
@@ -36,6 +48,112 @@ public class PoolTest {
 		comparePair(firstRaw, secondRaw);
 	}
 
+	@Test
+	public void structuralDobs() {
+		Pool pool = new Pool();
+		Dob first = pool.dobs.submergeString("((f)((g)(a))(b))");
+		Dob second = pool.dobs.submergeString("((f)((g)(a))(b))");
+		Dob other = pool.dobs.submergeString("((f)((g)(b))(a))");
+		
+		assertSame(first, second);
+		assertNotSame(first, other);
+		assertSame(first.at(0), other.at(0));
+		assertSame(first.at(1).at(1), other.at(2));
+	}
+	
+	@Test
+	public void submergedChildrenReused() {
+		Pool pool = new Pool();
+		Dob f = pool.dobs.submergeString("(f)");
+		Dob a = pool.dobs.submergeString("(a)");
+		
+		Dob fresh = new Dob(f, a);
+		assertSame(fresh, pool.dobs.submerge(fresh));
+		assertSame(fresh, pool.dobs.submerge(new Dob(f, a)));
+		assertSame(fresh, pool.dobs.submerge(fresh.deepCopy()));
+		assertEquals("((f)(a))", pool.dobs.submerge(fresh).toString());
+	}
+	
+	@Test
+	public void denseIds() {
+		Pool pool = new Pool();
+		int before = pool.dobs.size();
+		Dob dob = pool.dobs.submergeString("((f)(a)(b))");
+		assertEquals(before + 4, pool.dobs.size());
+		
+		for (int i = 0; i < pool.dobs.size(); i++) {
+			assertEquals(i, pool.dobs.id(pool.dobs.fromId(i)));
+		}
+		
+		assertSame(dob, pool.dobs.fromId(pool.dobs.id(dob)));
+		assertEquals(-1, pool.dobs.id(dob.deepCopy()));
+	}
+	
+	@Test
+	public void concurrentSubmersion() {
+		final Pool pool = Pool.createConcurrent();
+		final List<Dob> results = Synchron.newList();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 8; i++) {
+			threads.add(Synchron.startOnNewThread(new Runnable() {
+				@Override public void run() {
+					for (int j = 0; j < 100; j++) {
+						results.add(pool.dobs.submergeString("((f)((g)(a))(" + j % 10 + "))"));
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) Synchron.lightJoin(thread);
+		
+		Set<Dob> distinct = Sets.newIdentityHashSet();
+		distinct.addAll(results);
+		assertEquals(10, distinct.size());
+		for (Dob dob : distinct) assertSame(dob, pool.dobs.fromId(pool.dobs.id(dob)));
+	}
+	
+	@Test
+	public void concurrentLookups() {
+		Pool pool = Pool.createConcurrent();
+		Dob dob = pool.dobs.submergeString("((f)((g)(a))(b))");
+		int size = pool.dobs.size();
+		
+		assertSame(dob, pool.dobs.fromId(pool.dobs.id(dob)));
+		assertEquals(-1, pool.dobs.id(dob.deepCopy()));
+		assertFalse(pool.dobs.isSubmerged(new Dob("c")));
+		assertEquals(size, pool.dobs.size());
+		
+		Dob[] children = { dob.at(2), dob.at(0), dob.at(1), dob.at(2) };
+		assertSame(dob, pool.dobs.submergeNode(children, 1, 3));
+		assertEquals(size, pool.dobs.size());
+	}
+	
+	@Test
+	public void reclaimTransient() { checkReclaim(new Pool()); }
+	
+	@Test
+	public void reclaimConcurrent() { checkReclaim(Pool.createConcurrent()); }
+	
+	private void checkReclaim(Pool pool) {
+		Dob permanent = pool.dobs.submergeString("((f)((g)(a)))");
+		pool.dobs.mark();
+		int marked = pool.dobs.size();
+		int id = pool.dobs.id(permanent);
+		
+		Dob fleeting = pool.dobs.submergeString("((f)((g)(b)))");
+		assertTrue(pool.dobs.isSubmerged(fleeting));
+		pool.dobs.reclaim();
+		
+		assertEquals(marked, pool.dobs.size());
+		assertEquals(id, pool.dobs.id(permanent));
+		assertSame(permanent, pool.dobs.submergeString("((f)((g)(a)))"));
+		assertFalse(pool.dobs.isSubmerged(fleeting));
+		assertFalse(pool.dobs.isSubmerged(fleeting.at(1)));
+		
+		assertSame(fleeting, pool.dobs.submerge(fleeting));
+		assertSame(fleeting, pool.dobs.submergeString("((f)((g)(b)))"));
+		assertSame(permanent.at(0), fleeting.at(0));
+	}
+	
 	private void comparePair(String firstRaw, String canon) {
 		Pool pool = new Pool();
 		Rule first = pool.rules.submergeString(firstRaw);
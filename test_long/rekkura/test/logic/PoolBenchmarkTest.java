@@ -0,0 +1,117 @@
+package rekkura.test.logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rekkura.ggp.machina.GgpStateMachine;
+import rekkura.ggp.machina.ProverStateMachine;
+import rekkura.logic.format.LogicFormat;
+import rekkura.logic.format.StandardFormat;
+import rekkura.logic.model.Dob;
+import rekkura.logic.structure.Pool;
+import rekkura.state.algorithm.DepthCharger;
+import rekkura.test.ggp.SimpleGames;
+import rekkura.util.Submerger;
+
+import com.google.common.collect.Lists;
+
+/**
+ * This compares string keyed submersion against the structural
+ * submersion used by the pool on the dobs that come out of
+ * ConnectFour depth charges.
+ * @author ptpham
+ *
+ */
+public class PoolBenchmarkTest {
+
+	private static final int CHARGES = 20;
+	private static final int ROUNDS = 5;
+
+	@Test
+	public void connectFourSubmersion() {
+		ProverStateMachine machine = GgpStateMachine.GENERIC_FORWARD_PROVER
+			.create(SimpleGames.getConnectFour());
+
+		List<Dob> states = Lists.newArrayList();
+		Set<Dob> initial = machine.getInitial();
+		for (int i = 0; i < CHARGES; i++) {
+			for (Set<Dob> state : DepthCharger.fire(initial, machine)) states.addAll(state);
+		}
+
+		// Deep copies are the worst case for structural submersion 
+		// because every node is new. Rendered heads look more like 
+		// the shallow copies because they reuse submerged subtrees.
+		compare("Deep", states, true);
+		compare("Shallow", states, false);
+		System.out.println("ConnectFour cps: " + DepthCharger.measureCps(machine, CHARGES));
+	}
+
+	private void compare(String label, List<Dob> states, boolean deep) {
+		long stringed = 0, structural = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			Submerger<Dob> legacy = createStringSubmerger(StandardFormat.inst);
+			Pool pool = new Pool();
+			legacy.submerge(states);
+			pool.dobs.submerge(states);
+
+			List<Dob> copies = copies(states, deep);
+			long begin = System.nanoTime();
+			List<Dob> legacyResult = legacy.submerge(copies);
+			stringed += System.nanoTime() - begin;
+
+			copies = copies(states, deep);
+			begin = System.nanoTime();
+			List<Dob> structuralResult = pool.dobs.submerge(copies);
+			structural += System.nanoTime() - begin;
+
+			assertEquals(legacyResult.size(), structuralResult.size());
+			for (int i = 0; i < legacyResult.size(); i++) {
+				assertEquals(legacyResult.get(i).toString(), structuralResult.get(i).toString());
+				assertSame(structuralResult.get(i), pool.dobs.submerge(copies.get(i).deepCopy()));
+			}
+		}
+
+		System.out.println(label + " copies submerged: " + states.size() * ROUNDS);
+		System.out.println(label + " string keyed (ms): " + stringed / 1000000);
+		System.out.println(label + " structural (ms): " + structural / 1000000);
+	}
+
+	private static List<Dob> copies(List<Dob> dobs, boolean deep) {
+		List<Dob> result = Lists.newArrayListWithCapacity(dobs.size());
+		for (Dob dob : dobs) {
+			if (deep) result.add(dob.deepCopy());
+			else if (dob.isTerminal()) result.add(new Dob(dob.name));
+			else result.add(new Dob(dob.childCopy()));
+		}
+		return result;
+	}
+
+	/**
+	 * This is the submerger that the pool used before dobs
+	 * were keyed structurally.
+	 */
+	private static Submerger<Dob> createStringSubmerger(final LogicFormat fmt) {
+		return new Submerger<Dob>() {
+			@Override public Dob fromString(String s) { return fmt.dobFromString(s); }
+			@Override public String toString(Dob u) { return fmt.toString(u); }
+			@Override public Dob process(Dob u) {
+				boolean changed = false;
+				List<Dob> children = Lists.newArrayListWithCapacity(u.size());
+				for (int i = 0; i < u.size(); i++) {
+					Dob child = u.at(i);
+					Dob submerged = submerge(child);
+					if (child != submerged) changed = true;
+					children.add(submerged);
+				}
+
+				if (changed) return new Dob(children);
+				return u;
+			}
+		};
+	}
+}